@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import NMQC.BatchRunner;
+import NMQC.DirectoryWatcher;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line entry point of NMQC_.jar, runs the quality controls without
+ * ImageJ windows.
+ *
+ * @author alex
+ */
+public class NMQC {
+
+    private static void usage() {
+        System.err.println("Usage: java -jar NMQC_.jar <manifest.tsv> <output directory>");
+        System.err.println("       java -jar NMQC_.jar <directory> <output directory> <test>");
+        System.err.println("       java -jar NMQC_.jar --watch <directory> <output directory> [rules.tsv]");
+        System.err.println("The manifest has one 'file<TAB>test' line per acquisition.");
+        System.err.println("In watch mode the test is chosen from the DICOM header, planar images by the");
+        System.err.println("'keyword<TAB>test' rules matched against the series description.");
+        System.err.println("Available tests:");
+        for (String test : BatchRunner.TESTS) {
+            System.err.println("    " + test);
+        }
+    }
+
+    /**
+     *
+     * @param args the input (manifest or directory), the output directory and
+     * the test for all files in the input directory
+     * @throws Exception if the input can not be read
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length > 0 && args[0].equals("--watch")) {
+            watch(args);
+            return;
+        }
+        if (args.length < 2) {
+            usage();
+            System.exit(2);
+        }
+        File input = new File(args[0]);
+        File outdir = new File(args[1]);
+        List<String[]> jobs;
+        if (input.isDirectory()) {
+            if (args.length < 3) {
+                usage();
+                System.exit(2);
+            }
+            jobs = BatchRunner.readDirectory(input, args[2]);
+        } else {
+            jobs = BatchRunner.readManifest(input);
+        }
+        if (!outdir.isDirectory() && !outdir.mkdirs()) {
+            System.err.println("Unable to create " + outdir);
+            System.exit(2);
+        }
+        int failed = new BatchRunner(outdir).run(jobs);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void watch(String[] args) throws Exception {
+        if (args.length < 3 || !new File(args[1]).isDirectory()) {
+            usage();
+            System.exit(2);
+        }
+        File outdir = new File(args[2]);
+        if (!outdir.isDirectory() && !outdir.mkdirs()) {
+            System.err.println("Unable to create " + outdir);
+            System.exit(2);
+        }
+        Map<String, String> rules = args.length > 3 ? DirectoryWatcher.readRules(new File(args[3])) : DirectoryWatcher.getDefaultRules();
+        BatchRunner runner = new BatchRunner(outdir);
+        new DirectoryWatcher(new File(args[1]), runner, rules, 2000).watch();
+        runner.shutdown();
+    }
+
+}
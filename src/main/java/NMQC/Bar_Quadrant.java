@@ -23,7 +23,9 @@ import ij.measure.*;
 import ij.plugin.filter.PlugInFilter;
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.Rectangle;
 import java.util.*;
+import java.util.stream.IntStream;
 import utils.*;
 
 /**
@@ -33,6 +35,7 @@ import utils.*;
 public class Bar_Quadrant implements PlugInFilter {
 
     private ImagePlus imp;
+    private String Method = "";
     //private Roi roi;
     private final double[] barwidth = {2.12, 2.54, 3.18, 4.23};
 
@@ -58,54 +61,265 @@ public class Bar_Quadrant implements PlugInFilter {
             return DONE;
         }*/
         this.imp = imp;
+        this.Method = arg;
         return DOES_ALL;
     }
 
-    private Roi getQuadrant(Roi FOV, int quadrant) {
-        double[] middle = FOV.getContourCentroid();
-        FloatPolygon fp;
-        FloatPolygon poly = new FloatPolygon();
-        if (IJ.getVersion().contains("1.51")) {
-            fp = FOV.getContainedFloatPoints();
-        } else {
-            fp = Commons.getContainedFloatPoints(FOV);
+    /**
+     * The FOV pixels labelled by quadrant in one pass. The quadrant comes from
+     * the signs of the offsets to the FOV centroid, with the angle intervals
+     * of the quadrants closed (0 to 90, 90 to 180, ...), so a pixel on an axis
+     * belongs to both neighbour quadrants. The FOV mean and the bounds and
+     * row extents of every quadrant are read in the same pass.
+     *
+     * As the old quadrant selections, a quadrant is then cut to the pixels
+     * its convex hull contains, which leaves out its pixels on the right and
+     * bottom edges of the hull. A quadrant is convex, so only the ends of its
+     * rows are tested. The lowest value of every quadrant is read last.
+     */
+    private static class Quadrants {
+
+        // one bit per quadrant, 1 for the first one
+        final byte[] labels;
+        final int[][] bounds = new int[4][];
+        final float[] min = new float[4];
+        private final int[][] xl = new int[4][];
+        private final int[][] xr = new int[4][];
+        double mean;
+
+        Quadrants(float[] pixels, FOVMask mask, double[] middle) {
+            int width = mask.getWidth();
+            int height = mask.getHeight();
+            labels = new byte[width * height];
+            for (int q = 0; q < 4; q++) {
+                bounds[q] = new int[]{width, height, -1, -1};
+                min[q] = Float.POSITIVE_INFINITY;
+                xl[q] = new int[height];
+                xr[q] = new int[height];
+                Arrays.fill(xl[q], width);
+                Arrays.fill(xr[q], -1);
+            }
+            double sum = 0;
+            for (int y = 0, i = 0; y < height; y++) {
+                double dy = middle[1] - y;
+                for (int x = 0; x < width; x++, i++) {
+                    if (!mask.contains(i)) {
+                        continue;
+                    }
+                    sum += pixels[i];
+                    double dx = x - middle[0];
+                    boolean center = dx == 0 && dy == 0;
+                    int label = 0;
+                    if (dx >= 0 && dy >= 0) {
+                        label |= 1;
+                    }
+                    if (dx <= 0 && dy >= 0 && !center) {
+                        label |= 2;
+                    }
+                    if (dx <= 0 && dy <= 0 && !center) {
+                        label |= 4;
+                    }
+                    if (dx >= 0 && dy < 0) {
+                        label |= 8;
+                    }
+                    labels[i] = (byte) label;
+                    for (int q = 0; q < 4; q++) {
+                        if ((label & (1 << q)) != 0) {
+                            int[] b = bounds[q];
+                            b[0] = Math.min(b[0], x);
+                            b[1] = Math.min(b[1], y);
+                            b[2] = Math.max(b[2], x);
+                            b[3] = Math.max(b[3], y);
+                            xl[q][y] = Math.min(xl[q][y], x);
+                            xr[q][y] = Math.max(xr[q][y], x);
+                        }
+                    }
+                }
+            }
+            mean = sum / mask.getCount();
+            for (int q = 0; q < 4; q++) {
+                cut(pixels, width, q);
+            }
         }
 
-        for (int i = 0; i < fp.npoints; i++) {
-            double angle = MathUtils.getFloatAngle(middle[0], middle[1], fp.xpoints[i], fp.ypoints[i]);
-            if ((angle >= (quadrant - 1) * 90) && (angle <= quadrant * 90)) {
-                poly.addPoint(fp.xpoints[i], fp.ypoints[i]);
+        private void cut(float[] pixels, int width, int q) {
+            int[] b = bounds[q];
+            int[] xs = new int[2 * Math.max(0, b[3] - b[1] + 1)];
+            int[] ys = new int[xs.length];
+            int n = 0;
+            for (int y = b[1]; y <= b[3]; y++) {
+                if (xr[q][y] < 0) {
+                    continue;
+                }
+                xs[n] = xl[q][y];
+                ys[n++] = y;
+                xs[n] = xr[q][y];
+                ys[n++] = y;
+            }
+            Roi hull = new PolygonRoi(ConvexHull.getConvexHull(xs, ys, n), Roi.POLYGON);
+            byte bit = (byte) (1 << q);
+            for (int y = b[1]; y <= b[3]; y++) {
+                int x0 = xl[q][y];
+                int x1 = xr[q][y];
+                while (x0 <= x1 && !hull.contains(x0, y)) {
+                    labels[y * width + x0++] &= ~bit;
+                }
+                while (x1 >= x0 && !hull.contains(x1, y)) {
+                    labels[y * width + x1--] &= ~bit;
+                }
+                for (int x = x0, i = y * width + x0; x <= x1; x++, i++) {
+                    min[q] = Math.min(min[q], pixels[i]);
+                }
             }
         }
+    }
 
-        PolygonRoi result = new PolygonRoi(poly, Roi.POLYGON);
-        return new PolygonRoi(result.getConvexHull(), Roi.POLYGON);
+    /**
+     * The bars are the pixels of the quadrant darker than the FOV mean by half
+     * of the deepest one, their hull is the one of the thresholded selection.
+     */
+    private Roi DetectBars(float[] pixels, int width, Quadrants quadrants, float mean, int quadrant) {
+        int bit = 1 << quadrant;
+        double max = Math.max(0, mean - quadrants.min[quadrant]);
+        double threshold = max * 0.5;
+        int[] b = quadrants.bounds[quadrant];
+        Rectangle bounds = new Rectangle(b[0], b[1], b[2] - b[0] + 1, b[3] - b[1] + 1);
+        return Commons.getHull(width, bounds,
+                i -> (quadrants.labels[i] & bit) != 0 && Math.max(0, mean - pixels[i]) >= threshold);
     }
 
-    private Roi DetectBars(ImagePlus imp1, Roi FOV, float mean, int quadrant) {
-        ImageProcessor ip1 = imp1.getProcessor();
-        float[][] Pixels = ip1.getFloatArray();
-        float[][] tarray = new float[ip1.getWidth()][ip1.getHeight()];
-        double max = 0;
-        for (int i = 0; i < ip1.getWidth(); i++) {
-            for (int j = 0; j < ip1.getHeight(); j++) {
-                if (FOV.contains(i, j)) {
-                    tarray[i][j] = mean - Pixels[i][j];
-                    if (tarray[i][j] < 0) {
-                        tarray[i][j] = 0;
-                    }
-                    if (tarray[i][j] > max) {
-                        max = tarray[i][j];
-                    }
+    /**
+     *
+     * @return the mean and the standard deviation of the pixels in the roi
+     */
+    private static double[] getStatistics(float[] pixels, FOVMask mask) {
+        Rectangle r = mask.getBounds();
+        double sum = 0, sum2 = 0;
+        for (int y = r.y; y < r.y + r.height; y++) {
+            for (int x = r.x, i = y * mask.getWidth() + r.x; x < r.x + r.width; x++, i++) {
+                if (mask.contains(i)) {
+                    sum += pixels[i];
+                    sum2 += (double) pixels[i] * pixels[i];
                 }
             }
         }
-        ImageProcessor ip2 = new FloatProcessor(tarray);
-        ImagePlus imp2 = new ImagePlus("temporal " + quadrant, ip2);
-        Roi result = Commons.getThreshold(imp2, max * 0.5, 1);
-        //imp2.setRoi(result);
-        //imp2.show();
-        return result;
+        int n = mask.getCount();
+        double mean = sum / n;
+        double variance = n > 1 ? (sum2 - sum * mean) / (n - 1) : 0;
+        return new double[]{mean, Math.sqrt(Math.max(0, variance))};
+    }
+
+    /**
+     * The modulation of the bar pattern read from its spectrum. The bars,
+     * minus their mean, go through a Hann window over their bounds and a
+     * power of two FFT; the strongest peak in the frequency band of the
+     * phantom is the fundamental of the pattern. The power of the bins around
+     * the peak gives the amplitude without scalloping, the median power of
+     * the ring of the peak frequency (mostly Poisson noise) is subtracted
+     * first. The modulation is the amplitude over the one of a perfect square
+     * wave of the same mean, 4 mean / pi.
+     *
+     * @param fmin the lowest frequency searched in cycles per pixel
+     * @param fmax the highest frequency searched in cycles per pixel
+     * @return the peak frequency in cycles per pixel and the modulation
+     */
+    private static double[] getSpectralModulation(float[] pixels, FOVMask mask, double mean, double fmin, double fmax) {
+        Rectangle r = mask.getBounds();
+        FFT fft = FFT.getPlan(FFT.getSize(Math.max(r.width, r.height)));
+        int n = fft.getN();
+        double[] re = new double[n * n];
+        double[] im = new double[n * n];
+        double sumw2 = 0;
+        for (int y = 0; y < r.height; y++) {
+            double wy = 0.5 - 0.5 * Math.cos(2 * Math.PI * (y + 0.5) / r.height);
+            for (int x = 0, i = (r.y + y) * mask.getWidth() + r.x; x < r.width; x++, i++) {
+                if (mask.contains(i)) {
+                    double w = wy * (0.5 - 0.5 * Math.cos(2 * Math.PI * (x + 0.5) / r.width));
+                    re[y * n + x] = (pixels[i] - mean) * w;
+                    sumw2 += w * w;
+                }
+            }
+        }
+        fft.transform2D(re, im);
+        // the spectrum is symmetric, the upper half plane is enough
+        double pmax = -1;
+        int kx = 0, ky = 0;
+        for (int v = 0; v <= n / 2; v++) {
+            for (int u = -n / 2; u < n / 2; u++) {
+                double f = Math.sqrt(u * u + v * v) / n;
+                if (f < fmin || f > fmax) {
+                    continue;
+                }
+                double p = getPower(re, im, n, u, v);
+                if (p > pmax) {
+                    pmax = p;
+                    kx = u;
+                    ky = v;
+                }
+            }
+        }
+        if (pmax < 0) {
+            return new double[]{Double.NaN, Double.NaN};
+        }
+        double radius = Math.sqrt(kx * kx + ky * ky);
+        List<Double> ring = new ArrayList<>();
+        for (int v = 0; v <= n / 2; v++) {
+            for (int u = -n / 2; u < n / 2; u++) {
+                if (Math.abs(Math.sqrt(u * u + v * v) - radius) < 1) {
+                    ring.add(getPower(re, im, n, u, v));
+                }
+            }
+        }
+        Collections.sort(ring);
+        double floor = ring.get(ring.size() / 2);
+        // the main lobe of the Hann window spans two bins each side
+        double energy = 0;
+        for (int v = -2; v <= 2; v++) {
+            for (int u = -2; u <= 2; u++) {
+                if (u * u + v * v <= 4) {
+                    energy += getPower(re, im, n, kx + u, ky + v) - floor;
+                }
+            }
+        }
+        double amplitude = 2 * Math.sqrt(Math.max(0, energy) / (n * n * sumw2));
+        return new double[]{radius / n, amplitude * Math.PI / (4 * mean)};
+    }
+
+    private static double getPower(double[] re, double[] im, int n, int u, int v) {
+        int i = ((v + n) % n) * n + (u + n) % n;
+        return re[i] * re[i] + im[i] * im[i];
+    }
+
+    /**
+     *
+     * @param frequency the peak frequency of every quadrant
+     * @return the quadrants from the highest frequency (the thinnest bars) to
+     * the lowest
+     */
+    private static int[] getFrequencyOrder(double[] frequency) {
+        return IntStream.range(0, 4).boxed()
+                .sorted((a, b) -> Double.compare(frequency[b], frequency[a]))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * The least squares fit of a gaussian MTF, exp(-(pi FWHM f)^2 / (4 ln 2)),
+     * to the MTF of the bars: ln(1 / MTF) is linear in f^2
+     *
+     * @param mtf the MTF of every bar width
+     * @return the FWHM of the gaussian in mm
+     */
+    private double getGaussianFWHM(double[] mtf) {
+        double sxy = 0, sxx = 0;
+        for (int i = 0; i < 4; i++) {
+            if (mtf[i] > 0) {
+                double f2 = 1 / (4 * barwidth[i] * barwidth[i]);
+                sxy += f2 * Math.log(1 / mtf[i]);
+                sxx += f2 * f2;
+            }
+        }
+        double slope = sxx > 0 ? sxy / sxx : Double.NaN;
+        return slope > 0 ? Math.sqrt(4 * Math.log(2) * slope) / Math.PI : Double.NaN;
     }
 
     private double[] getBarWidth(double[] lmtf) {
@@ -142,37 +356,78 @@ public class Bar_Quadrant implements PlugInFilter {
      */
     @Override
     public void run(ImageProcessor ip) {
+        Overlay list = new Overlay();
+        ResultsTable rt = getResults(list);
+
+        imp.setOverlay(list);
+        //imp.show();
+
+        rt.show(Commons.LANGUAGES.getString("QUADRANT_BAR_PHANTOM") + imp.getTitle());
+
+        FileInfo fi = imp.getOriginalFileInfo();
+        Commons.saveRT(rt, fi.directory, Method.isEmpty() ? fi.fileName : fi.fileName + "-" + Method);
+    }
+
+    /**
+     * Computes the MTF and resolution of every quadrant without opening any
+     * window
+     *
+     * @param list the overlay on which we add the quadrants and their labels
+     * @return the results table
+     */
+    public ResultsTable getResults(Overlay list) {
 
-        ImagePlus imp2 = imp.duplicate();
         imp.deleteRoi();
-        imp2.deleteRoi();
-        Roi FOV = Commons.getThreshold(imp2, imp2.getStatistics().max * 0.1, 0.95);
-        imp2.setRoi(FOV);
-        double mean = imp2.getStatistics().mean;
-        imp2.deleteRoi();
+        Roi FOV = Commons.getThreshold(imp, imp.getStatistics().max * 0.1, 0.95);
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        float[] pixels = (float[]) imp.getProcessor().convertToFloat().getPixels();
+        Quadrants quadrants = new Quadrants(pixels, new FOVMask(FOV, width, height), FOV.getContourCentroid());
+        float mean = (float) quadrants.mean;
+        boolean spectral = Method.contains("FFT");
+        double pw = imp.getCalibration().pixelWidth;
+        // the fundamentals of the bars, with some room for the pixel size
+        double fmin = 0.75 * pw / (2 * barwidth[3]);
+        double fmax = Math.min(0.5, 1.25 * pw / (2 * barwidth[0]));
+        double[] frequency = new double[4];
 
         ResultsTable rt = new ResultsTable();
-        Overlay list = new Overlay();
         Roi[] lFOV = new Roi[4];
         double[] lmtf = new double[4];
         TextRoi.setFont(Font.SERIF, 12, Font.PLAIN, true);
         TextRoi.setGlobalJustification(TextRoi.CENTER);
         TextRoi.setColor(Color.yellow);
+        IntStream.range(0, 4).parallel().forEach(i -> {
+            lFOV[i] = DetectBars(pixels, width, quadrants, mean, i);
+            FOVMask barmask = new FOVMask(lFOV[i], width, height);
+            double[] stats = getStatistics(pixels, barmask);
+            if (spectral) {
+                double[] peak = getSpectralModulation(pixels, barmask, stats[0], fmin, fmax);
+                frequency[i] = peak[0];
+                lmtf[i] = peak[1];
+            } else {
+                lmtf[i] = MathUtils.MTF(stats[0], stats[1]);
+            }
+        });
         for (int i = 0; i < 4; i++) {
-            lFOV[i] = getQuadrant(FOV, i + 1);
-            lFOV[i] = DetectBars(imp2, lFOV[i], (float) mean, i);
-            //lFOV[i] = new Roi(lFOV[i].getBounds());
             lFOV[i].setStrokeColor(Color.yellow);
             list.add(lFOV[i]);
-            imp2.setRoi(lFOV[i]);
-            ImageStatistics is2 = imp2.getStatistics();
-            double lmean = is2.mean;
-            double lstddev = is2.stdDev;
-            imp2.deleteRoi();
-            lmtf[i] = MathUtils.MTF(lmean, lstddev);
-        }
-        int[] bw = getQuadrantOrder(lmtf);
-        Arrays.sort(lmtf);
+        }
+        int[] bw;
+        if (spectral) {
+            bw = getFrequencyOrder(frequency);
+            double[] sorted = new double[4];
+            double[] sortedf = new double[4];
+            for (int i = 0; i < 4; i++) {
+                sorted[i] = lmtf[bw[i]];
+                sortedf[i] = frequency[bw[i]];
+            }
+            System.arraycopy(sorted, 0, lmtf, 0, 4);
+            System.arraycopy(sortedf, 0, frequency, 0, 4);
+        } else {
+            bw = getQuadrantOrder(lmtf);
+            Arrays.sort(lmtf);
+        }
         for (int i = 0; i < 4; i++) {
             double FWHM = barwidth[i] * Math.sqrt((16 * Math.log(2) / (Math.PI * Math.PI)) * Math.log(1 / lmtf[i]));
             double FWTM = barwidth[i] * Math.sqrt((16 * Math.log(10) / (Math.PI * Math.PI)) * Math.log(1 / lmtf[i]));
@@ -182,19 +437,26 @@ public class Bar_Quadrant implements PlugInFilter {
             rt.addValue("MTF", IJ.d2s(lmtf[i], 5, 9));
             rt.addValue("FWHM (mm)", IJ.d2s(FWHM, 5, 9));
             rt.addValue("FWTM (mm)", IJ.d2s(FWTM, 5, 9));
+            if (spectral) {
+                rt.addValue("Frequency (1/mm)", IJ.d2s(frequency[i] / pw, 5, 9));
+            }
             double[] center = lFOV[bw[i]].getContourCentroid();
             TextRoi tr = new TextRoi(center[0], center[1], "" + (i + 1));
             list.add(tr);
         }
-
-        imp.setOverlay(list);
-        //imp.show();
+        if (spectral) {
+            double FWHM = getGaussianFWHM(lmtf);
+            rt.incrementCounter();
+            rt.addValue(Commons.LANGUAGES.getString("QUADRANT"), Commons.LANGUAGES.getString("GAUSSIAN_FIT"));
+            rt.addValue(Commons.LANGUAGES.getString("BARWIDTH"), "");
+            rt.addValue("MTF", "");
+            rt.addValue("FWHM (mm)", IJ.d2s(FWHM, 5, 9));
+            rt.addValue("FWTM (mm)", IJ.d2s(FWHM * Math.sqrt(Math.log(10) / Math.log(2)), 5, 9));
+            rt.addValue("Frequency (1/mm)", "");
+        }
 
         rt.showRowNumbers(false);
-        rt.show(Commons.LANGUAGES.getString("QUADRANT_BAR_PHANTOM") + imp.getTitle());
-
-        FileInfo fi = imp.getOriginalFileInfo();
-        Commons.saveRT(rt, fi.directory, fi.fileName);
+        return rt;
     }
 
     void showAbout() {
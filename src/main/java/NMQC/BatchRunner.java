@@ -0,0 +1,326 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package NMQC;
+
+import ij.*;
+import ij.gui.*;
+import ij.measure.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import utils.*;
+
+/**
+ * Runs the NMQC analyses without any window on a fixed pool of workers, one
+ * results file per acquisition in the output directory.
+ *
+ * The tests are named as the plugins and their arguments in plugins.config,
+ * i.e. Planar_Uniformity, IntResol_Linearity(Horizontal include),
+ * C_O_R(Sine), Bar_Quadrant or Tomographic_Uniformity.
+ *
+ * @author alex
+ */
+public class BatchRunner {
+
+    /**
+     * The tests that can be run unattended
+     */
+    public static final String[] TESTS = {
+        "Planar_Uniformity",
+        "IntResol_Linearity(Horizontal include)",
+        "IntResol_Linearity(Vertical include)",
+        "IntResol_Linearity(Horizontal exclude)",
+        "IntResol_Linearity(Vertical exclude)",
+        "C_O_R(Sine)",
+        "C_O_R(Sine refine)",
+        "C_O_R(Sine multi)",
+        "C_O_R(Conjugate)",
+        "Bar_Quadrant",
+        "Bar_Quadrant(FFT)",
+        "Tomographic_Uniformity",
+        "Tomographic_Uniformity(slices)"};
+
+    private final File outdir;
+    private final ExecutorService pool;
+    private final Semaphore slots;
+
+    /**
+     * Creator
+     *
+     * @param outdir the directory where the results are written
+     * @param nthreads the number of workers
+     * @param queuesize the number of acquisitions that can wait for a worker,
+     * submit blocks when the queue is full
+     */
+    public BatchRunner(File outdir, int nthreads, int queuesize) {
+        this.outdir = outdir;
+        this.pool = Executors.newFixedThreadPool(nthreads);
+        this.slots = new Semaphore(nthreads + queuesize);
+    }
+
+    /**
+     * Creator with one worker per core and four waiting acquisitions per
+     * worker
+     *
+     * @param outdir the directory where the results are written
+     */
+    public BatchRunner(File outdir) {
+        this(outdir, Runtime.getRuntime().availableProcessors(), 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Runs a test on an image
+     *
+     * @param imp the acquisition
+     * @param test the test name, optionally followed by the plugin argument in
+     * brackets
+     * @return the results table, null if the analysis failed
+     */
+    public static ResultsTable Analyze(ImagePlus imp, String test) {
+        String name = test.trim();
+        String arg = "";
+        int i = name.indexOf('(');
+        if (i > 0) {
+            int j = name.lastIndexOf(')');
+            arg = name.substring(i + 1, j > i ? j : name.length()).trim();
+            name = name.substring(0, i).trim();
+        }
+        switch (name) {
+            case "Planar_Uniformity":
+                return Planar_Uniformity.getResults(imp);
+            case "IntResol_Linearity": {
+                IntResol_Linearity plugin = new IntResol_Linearity();
+                plugin.setup(arg, imp);
+                return plugin.getResults(new Overlay());
+            }
+            case "C_O_R": {
+                C_O_R plugin = new C_O_R();
+                plugin.setup(arg, imp);
+                return plugin.getResults();
+            }
+            case "Bar_Quadrant": {
+                Bar_Quadrant plugin = new Bar_Quadrant();
+                plugin.setup(arg, imp);
+                return plugin.getResults(new Overlay());
+            }
+            case "Tomographic_Uniformity": {
+                Tomographic_Uniformity plugin = new Tomographic_Uniformity();
+                plugin.setup(arg, imp);
+                return plugin.getResults(1, imp.getStackSize());
+            }
+            default:
+                throw new IllegalArgumentException("Unknown test: " + test);
+        }
+    }
+
+    /**
+     *
+     * @param file the acquisition
+     * @param test the test name
+     * @return the results file for this acquisition and test
+     */
+    public File getResultsFile(File file, String test) {
+        String ltest = test.trim().replaceAll("[^A-Za-z0-9_]+", "_").replaceAll("_+$", "");
+        return new File(outdir, "Results-" + Commons.getFileName(file.getName()) + "-" + ltest + ".tsv");
+    }
+
+    /**
+     * Opens the acquisition, runs the test and saves the results
+     *
+     * @param file the acquisition
+     * @param test the test name
+     * @return the results file
+     * @throws IOException if the image can not be opened or the results can
+     * not be written
+     */
+    public File process(File file, String test) throws IOException {
+        // MetaImage studies are mapped, slices are read when the test needs them
+        ImagePlus imp = MetaImage.isMetaImage(file.getPath()) ? MetaImage.open(file.getPath()) : IJ.openImage(file.getPath());
+        if (imp == null) {
+            throw new IOException("Unable to open " + file);
+        }
+        ResultsTable rt = Analyze(imp, test);
+        imp.close();
+        if (rt == null) {
+            throw new IOException(test + " failed for " + file);
+        }
+        String invalid = getInvalidValue(rt);
+        if (invalid != null) {
+            throw new IOException(test + " gave " + invalid + " for " + file);
+        }
+        File result = getResultsFile(file, test);
+        rt.saveAs(result.getPath());
+        return result;
+    }
+
+    /**
+     * A table is not enough for a successful analysis: a failed fit or an
+     * acquisition given the wrong test leaves NaN or infinite measurements
+     * (a linearity image analysed across its stripes has no conformed peak,
+     * so its mean resolutions are NaN). Zero is a valid result (an aligned
+     * COR, no tilt). Cells that are not numbers (names, empty cells) are not
+     * checked.
+     *
+     * @param rt the results table
+     * @return the first NaN or infinite value as 'column, row: value', null
+     * if there is none
+     */
+    static String getInvalidValue(ResultsTable rt) {
+        for (int row = 0; row < rt.size(); row++) {
+            for (int column = 0; column <= rt.getLastColumn(); column++) {
+                if (!rt.columnExists(column)) {
+                    continue;
+                }
+                String cell = rt.getStringValue(column, row).trim();
+                double value;
+                try {
+                    value = Double.parseDouble(cell);
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    return rt.getColumnHeading(column) + ", " + (row + 1) + ": " + cell;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues an acquisition in the worker pool, waits while the queue is full
+     *
+     * @param file the acquisition
+     * @param test the test name
+     * @return the future results file
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Future<File> submit(final File file, final String test) throws InterruptedException {
+        return submit(() -> process(file, test));
+    }
+
+    /**
+     * Queues a task in the worker pool, waits while the queue is full
+     *
+     * @param <T> the task result
+     * @param task the task
+     * @return the future result
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public <T> Future<T> submit(final Callable<T> task) throws InterruptedException {
+        slots.acquire();
+        try {
+            return pool.submit(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            slots.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Waits for all queued acquisitions and stops the workers
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown() throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * Reads a manifest, a tab separated file with one acquisition per line:
+     * the file path and the test name. Relative paths are taken from the
+     * manifest directory, lines starting with # are ignored.
+     *
+     * @param manifest the manifest file
+     * @return pairs of file path and test name
+     * @throws IOException if the manifest can not be read
+     */
+    public static List<String[]> readManifest(File manifest) throws IOException {
+        List<String[]> result = new ArrayList<>();
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length < 2) {
+                throw new IOException("Expected 'file<TAB>test' in manifest line: " + line);
+            }
+            File file = new File(fields[0].trim());
+            if (!file.isAbsolute()) {
+                file = new File(dir, fields[0].trim());
+            }
+            result.add(new String[]{file.getPath(), fields[1].trim()});
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @param dir a directory with acquisitions
+     * @param test the test to run on all of them
+     * @return pairs of file path and test name
+     */
+    public static List<String[]> readDirectory(File dir, String test) {
+        List<String[]> result = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return result;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isFile() && !file.isHidden()) {
+                result.add(new String[]{file.getPath(), test});
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs all jobs and reports each of them in the standard output
+     *
+     * @param jobs pairs of file path and test name
+     * @return the number of failed jobs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int run(List<String[]> jobs) throws InterruptedException {
+        List<Future<File>> futures = new ArrayList<>();
+        for (String[] job : jobs) {
+            futures.add(submit(new File(job[0]), job[1]));
+        }
+        int failed = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            try {
+                File result = futures.get(i).get();
+                System.out.println("OK\t" + jobs.get(i)[0] + "\t" + jobs.get(i)[1] + "\t" + result);
+            } catch (ExecutionException ex) {
+                failed++;
+                System.err.println("FAILED\t" + jobs.get(i)[0] + "\t" + jobs.get(i)[1] + "\t" + ex.getCause());
+            }
+        }
+        shutdown();
+        return failed;
+    }
+
+}
@@ -20,6 +20,8 @@ import ij.io.FileInfo;
 import ij.process.*;
 import ij.measure.*;
 import ij.plugin.filter.PlugInFilter;
+import java.util.*;
+import java.util.stream.*;
 import utils.*;
 
 /**
@@ -28,8 +30,13 @@ import utils.*;
  */
 public class C_O_R implements PlugInFilter {
 
+    private static final double SOURCETHRESHOLD = 0.25;
+    private static final double MINSOURCEWEIGHT = 0.05;
+
     private ImagePlus imp;
     private String Method;
+    private double[] angles, centers, params;
+    private double background = 0;
 
     /**
      *
@@ -52,12 +59,56 @@ public class C_O_R implements PlugInFilter {
         return DOES_ALL;
     }
 
+    /**
+     * Pixels not above the background are left out of the centroids and the
+     * background is subtracted from the rest, 0 by default
+     *
+     * @param background the background in counts
+     */
+    public void setBackground(double background) {
+        this.background = background;
+    }
+
     /**
      *
      * @param ip The image processor
      */
     @Override
     public void run(ImageProcessor ip) {
+        ResultsTable rt;
+        try {
+            rt = getResults();
+        } catch (IllegalArgumentException ex) {
+            IJ.error(Commons.LANGUAGES.getString("ERROR_IN_CONNJUGATE_VIEW_METHOD"), ex.getMessage());
+            return;
+        }
+        if (rt == null) {
+            return;
+        }
+        if (Method.contains("Sine")) {//Sine fit
+            if (!Method.contains("multi")) {
+                Plotter.plot("Sine", "y = a + b * sin(c * x + d)", angles, centers, params, 4,
+                        x -> SineFit.f(params, x), getRSquared(), false);
+            }
+            rt.show(Commons.LANGUAGES.getString("CENTER_OF_ROTATIONSINE_FIT") + imp.getTitle());
+        }
+        if (Method.contains("Conjugate")) {//Conjugate views
+            rt.show(Commons.LANGUAGES.getString("CENTER_OF_ROTATIONCONJUGATE_VIEWS") + imp.getTitle());
+        }
+
+        FileInfo fi = imp.getOriginalFileInfo();
+
+        Commons.saveRT(rt, fi.directory, fi.fileName + "-" + Method);
+    }
+
+    /**
+     * Computes the center of rotation without opening any window
+     *
+     * @return the results table, null if the calculation failed
+     * @throws IllegalArgumentException if the conjugate views method is asked
+     * for an arc other than 360 degrees
+     */
+    public ResultsTable getResults() {
 
         int ns = imp.getStackSize();
         ImageStack stack = imp.getImageStack();
@@ -70,62 +121,78 @@ public class C_O_R implements PlugInFilter {
         double[] it = new double[ns];
 
         //Reading Dicom header for angle data
-        String Info = imp.getInfoProperty();
+        DicomHeader header = DicomHeader.getHeader(imp);
         String ScanArckey = "0018,1143";
         String StartAnglekey = "0054,0200";
         String RotationDirectiokey = "0018,1140";
+        String NumberOfDetectorskey = "0054,0021";
+        String AngularStepkey = "0018,1144";
+        for (String key : new String[]{ScanArckey, StartAnglekey, RotationDirectiokey}) {
+            if (!header.contains(key)) {
+                IJ.log(Commons.format(Commons.LANGUAGES.getString("NO_INFO_FOR_KEY_IN_DICOM_HEADER"), key));
+            }
+        }
 
-        double ScanArc = Commons.getNumericValueFromInfo(Info, ScanArckey);
-        double StartAngle = Commons.getNumericValueFromInfo(Info, StartAnglekey);
-        String RotationDirection = Commons.getStringValueFromInfo(Info, RotationDirectiokey);
+        double ScanArc = header.getNumber(ScanArckey, 360);
+        double StartAngle = header.getNumber(StartAnglekey, 0);
+        String RotationDirection = header.getString(RotationDirectiokey, "");
+        // the step of the header holds for stacks that are not a whole arc
+        double step = header.getNumber(AngularStepkey, 0);
+        int nheads = Method.contains("multi") ? header.getInt(NumberOfDetectorskey, 1) : 1;
+        if (nheads < 1 || ns % nheads != 0) {
+            nheads = 1;
+        }
+        if (!(step > 0)) {
+            step = ScanArc * nheads / ns;
+        }
         double anglestep;
-        if (RotationDirection.contains("CCW")) {
-            anglestep = ScanArc / ns;
-        } else if (RotationDirection.contains("CW")) {
-            anglestep = -ScanArc / ns;
-        } else {
-            ScanArc = ns;
-            StartAngle = 0;
-            anglestep = 1;
+        // the angles are known only for the standard directions, otherwise
+        // they are the projection numbers and the frequency is fitted
+        boolean knownangles = true;
+        switch (RotationDirection.trim().toUpperCase()) {
+            case "CC":
+            case "CCW":
+                anglestep = step;
+                break;
+            case "CW":
+                anglestep = -step;
+                break;
+            default:
+                IJ.log(Commons.format(Commons.LANGUAGES.getString("UNKNOWN_ROTATION_DIRECTION"), RotationDirection));
+                knownangles = false;
+                ScanArc = ns;
+                StartAngle = 0;
+                anglestep = 1;
         }
 
         for (int z = 1; z <= ns; z++) {
-            ImageProcessor ip2 = stack.getProcessor(z);
             it[z - 1] = (StartAngle + z * anglestep) * 2 * Math.PI / 360;
-            ImageStatistics is = ip2.getStatistics();
-            cmx[z - 1] = is.xCenterOfMass;
-            cmy[z - 1] = is.yCenterOfMass;
         }
-
-        //To determinate the offset in X
-        CurveFitter cf = new CurveFitter(it, cmx);
-        cf.setStatusAndEsc("Optimization: Iteration ", true);
-        java.lang.String equation = "y = a + b * sin(c * x + d)";
-        double[] initialParams = new double[4];
-        boolean showSettings = false;
-
-        // Using default initialization
-        initialParams[0] = cmx[0];
-        initialParams[1] = 0.0;
-        initialParams[2] = 2 * Math.PI / ns;
-        initialParams[3] = 0.0;
-
-        int params_e = cf.doCustomFit(equation, initialParams, showSettings);
-        if (params_e == 0) {
-            IJ.beep();
-            IJ.log(Commons.LANGUAGES.getString("BAD_FORMULA"));
-            return;
+        if (Method.contains("multi")) {
+            return getMultiResults(stack, nheads, StartAngle, anglestep, knownangles, vw, vh);
         }
-        if (cf.getStatus() == Minimizer.INITIALIZATION_FAILURE) {
-            IJ.beep();
-            IJ.showStatus(cf.getStatusString());
-            IJ.log(Commons.LANGUAGES.getString("CURVE_FITTING_ERROR") + cf.getStatusString());
-            return;
+        double[][] centroids;
+        if (Method.contains("stream")) {
+            centroids = getStreamedCentroids(stack, it, knownangles);
+            if (centroids == null) {
+                return null;
+            }
+        } else {
+            centroids = Centroids.getCentroids(stack, background);
         }
-        if (Double.isNaN(cf.getSumResidualsSqr())) {
+        for (int z = 1; z <= ns; z++) {
+            cmx[z - 1] = centroids[z - 1][0];
+            cmy[z - 1] = centroids[z - 1][1];
+        }
+
+        //To determinate the offset in X
+        params = getSine(it, cmx, ns, knownangles, Method.contains("refine"));
+        angles = it;
+        centers = cmx;
+        if (Double.isNaN(params[0]) || Double.isNaN(params[1]) || Double.isNaN(params[3])) {
             IJ.beep();
             IJ.showStatus(Commons.LANGUAGES.getString("ERRORFIT_YIELDS_NOT-A-NUMBER"));
-            return;
+            return null;
         }
 
         //To determinate the offset in Y
@@ -135,7 +202,7 @@ public class C_O_R implements PlugInFilter {
             diferencia[i] = Math.abs(cmy[i] - avgy);
         }
 
-        double[] rest = cf.getResiduals();
+        double[] rest = SineFit.getResiduals(params, it, cmx);
         double b = MathUtils.Max(rest);
         double c = MathUtils.Max(diferencia);
 
@@ -143,7 +210,6 @@ public class C_O_R implements PlugInFilter {
         rt.showRowNumbers(false);
 
         if (Method.contains("Sine")) {//Sine fit
-            Plotter.plot(cf, false);
             rt.incrementCounter();
             rt.addValue(Commons.LANGUAGES.getString("TEST"), "COR X");
             rt.addValue("px", IJ.d2s(b, 5, 9));
@@ -152,14 +218,11 @@ public class C_O_R implements PlugInFilter {
             rt.addValue(Commons.LANGUAGES.getString("TEST"), "COR Y");
             rt.addValue("px", IJ.d2s(c, 5, 9));
             rt.addValue("mm", IJ.d2s(c * vh, 5, 9));
-
-            rt.show(Commons.LANGUAGES.getString("CENTER_OF_ROTATIONSINE_FIT") + imp.getTitle());
         }
         if (Method.contains("Conjugate")) {//Conjugate views
             if (ScanArc != 360.0) {
-                IJ.error(Commons.LANGUAGES.getString("ERROR_IN_CONNJUGATE_VIEW_METHOD"), Commons.LANGUAGES.getString("SCAN_ARC_MUST_BE_360_FOR_THIS_METHOD")
+                throw new IllegalArgumentException(Commons.LANGUAGES.getString("SCAN_ARC_MUST_BE_360_FOR_THIS_METHOD")
                         + IJ.d2s(ScanArc));
-                return;
             }
 
             int rsize = (int) ns / 2;
@@ -178,13 +241,212 @@ public class C_O_R implements PlugInFilter {
             rt.addValue(Commons.LANGUAGES.getString("TEST"), "COR Y");
             rt.addValue("px", IJ.d2s(c, 5, 9));
             rt.addValue("mm", IJ.d2s(c * vh, 5, 9));
+        }
 
-            rt.show(Commons.LANGUAGES.getString("CENTER_OF_ROTATIONCONJUGATE_VIEWS") + imp.getTitle());
+        return rt;
+    }
+
+    /**
+     * Center of rotation of several point sources and detector heads. The
+     * stack holds the projections of one head after the other, the sources
+     * are the connected components of every projection, tracked from angle to
+     * angle by their nearest position and fitted per source and head.
+     *
+     * @param stack the projections
+     * @param nheads the number of heads
+     * @param startangle the start angle in degrees
+     * @param anglestep the angle between the projections of a head in degrees
+     * @param knownangles false if the angles are only the projection numbers
+     * @param vw the pixel width
+     * @param vh the pixel height
+     * @return the offset of the rotation center, the COR offsets in X and Y
+     * and the tilt per head and source
+     */
+    private ResultsTable getMultiResults(ImageStack stack, int nheads, double startangle, double anglestep, boolean knownangles, double vw, double vh) {
+        int ns = stack.getSize();
+        int perhead = ns / nheads;
+        // the labelling is independent for every projection
+        List<List<double[]>> components = IntStream.rangeClosed(1, ns).parallel()
+                .mapToObj(z -> getSources(stack, z)).collect(Collectors.toList());
+        ResultsTable rt = new ResultsTable();
+        rt.showRowNumbers(false);
+        for (int h = 0; h < nheads; h++) {
+            double[][][] tracks = getTracks(components.subList(h * perhead, (h + 1) * perhead));
+            for (int source = 0; source < tracks.length; source++) {
+                double[] cx = tracks[source][0];
+                double[] cy = tracks[source][1];
+                double[] angle = new double[perhead];
+                double[] x = new double[perhead];
+                double[] y = new double[perhead];
+                double meany = 0;
+                int n = 0;
+                for (int k = 0; k < perhead; k++) {
+                    if (!Double.isNaN(cx[k])) {
+                        angle[n] = (startangle + (k + 1) * anglestep) * 2 * Math.PI / 360;
+                        x[n] = cx[k];
+                        y[n] = cy[k];
+                        n++;
+                        meany += (cy[k] - meany) / n;
+                    }
+                }
+                if (n == 0) {
+                    continue;
+                }
+                angle = Arrays.copyOf(angle, n);
+                x = Arrays.copyOf(x, n);
+                y = Arrays.copyOf(y, n);
+                double[] px = getSine(angle, x, n, knownangles, false);
+                // the Y sinusoid of a tilted head has the frequency of the X one
+                SineFit sy = new SineFit(px[2]);
+                sy.add(angle, y, n);
+                double[] py = sy.getParams();
+                double b = MathUtils.Max(SineFit.getResiduals(px, angle, x));
+                double c = 0;
+                for (int k = 0; k < n; k++) {
+                    c = Math.max(c, Math.abs(y[k] - meany));
+                }
+                // a tilted head moves the source in Y with the rotation, in
+                // phase with X or against it, the amplitudes are not signed
+                double tilt = Math.toDegrees(Math.atan2(py[1] * Math.cos(py[3] - px[3]) * vh, px[1] * vw));
+                rt.incrementCounter();
+                rt.addValue("Head", h + 1);
+                rt.addValue("Source", source + 1);
+                rt.addValue("Projections", n);
+                // the center of the sinusoid from the center of the matrix
+                double offset = px[0] - stack.getWidth() / 2.0;
+                rt.addValue("Offset px", IJ.d2s(offset, 5, 9));
+                rt.addValue("Offset mm", IJ.d2s(offset * vw, 5, 9));
+                rt.addValue("COR X px", IJ.d2s(b, 5, 9));
+                rt.addValue("COR X mm", IJ.d2s(b * vw, 5, 9));
+                rt.addValue("COR Y px", IJ.d2s(c, 5, 9));
+                rt.addValue("COR Y mm", IJ.d2s(c * vh, 5, 9));
+                rt.addValue("Tilt (deg)", IJ.d2s(tilt, 5, 9));
+            }
         }
+        return rt;
+    }
 
-        FileInfo fi = imp.getOriginalFileInfo();
+    /**
+     * The point sources of a projection, the components with less than
+     * MINSOURCEWEIGHT of the strongest one are noise
+     */
+    private List<double[]> getSources(ImageStack stack, int z) {
+        List<double[]> sources = Centroids.getComponents(stack, z, background, SOURCETHRESHOLD);
+        int n = 0;
+        while (n < sources.size() && sources.get(n)[2] >= MINSOURCEWEIGHT * sources.get(0)[2]) {
+            n++;
+        }
+        return sources.subList(0, n);
+    }
 
-        Commons.saveRT(rt, fi.directory, fi.fileName + "-" + Method);
+    /**
+     * Follows the sources of the first projection through the others, every
+     * source takes the nearest free component to its last position
+     *
+     * @return x and y per source and projection, NaN where it is not found
+     */
+    private static double[][][] getTracks(List<List<double[]>> components) {
+        List<double[]> first = new ArrayList<>(components.get(0));
+        first.sort((c1, c2) -> Double.compare(c1[1], c2[1])); // numbered from the top
+        int nsources = first.size();
+        int np = components.size();
+        double[][][] tracks = new double[nsources][2][np];
+        double[][] last = new double[nsources][];
+        for (int s = 0; s < nsources; s++) {
+            last[s] = first.get(s);
+            Arrays.fill(tracks[s][0], Double.NaN);
+            Arrays.fill(tracks[s][1], Double.NaN);
+        }
+        for (int k = 0; k < np; k++) {
+            List<double[]> current = components.get(k);
+            List<double[]> pairs = new ArrayList<>();
+            for (int s = 0; s < nsources; s++) {
+                for (int j = 0; j < current.size(); j++) {
+                    double dx = current.get(j)[0] - last[s][0];
+                    double dy = current.get(j)[1] - last[s][1];
+                    pairs.add(new double[]{dx * dx + dy * dy, s, j});
+                }
+            }
+            pairs.sort((p1, p2) -> Double.compare(p1[0], p2[0]));
+            boolean[] tracked = new boolean[nsources];
+            boolean[] used = new boolean[current.size()];
+            for (double[] pair : pairs) {
+                int s = (int) pair[1];
+                int j = (int) pair[2];
+                if (!tracked[s] && !used[j]) {
+                    tracked[s] = true;
+                    used[j] = true;
+                    last[s] = current.get(j);
+                    tracks[s][0][k] = last[s][0];
+                    tracks[s][1][k] = last[s][1];
+                }
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * The sinusoid of the centroids. With the angles of the header the
+     * frequency is 1 and the fit is linear in a, p and q; with the projection
+     * numbers as angles the frequency is fitted too, for any arc between 90
+     * and 720 degrees.
+     *
+     * @param it the angles in radians
+     * @param c the centroids
+     * @param n the number of projections
+     * @param knownangles false if the angles are only the projection numbers
+     * @param refine true to fit the four parameters with the angles known
+     * @return the parameters a, b, c and d
+     */
+    private static double[] getSine(double[] it, double[] c, int n, boolean knownangles, boolean refine) {
+        if (!knownangles) {
+            return SineFit.fit(it, c, n, 90.0 / n, 720.0 / n, 64);
+        }
+        SineFit sf = new SineFit(1);
+        sf.add(it, c, n);
+        double[] p = sf.getParams();
+        return refine ? SineFit.refine(Arrays.copyOf(it, n), Arrays.copyOf(c, n), p) : p;
+    }
+
+    /**
+     * Reads the projections one after another, as they would arrive from the
+     * camera, showing the provisional offsets after each one. Esc stops the
+     * analysis. Without the angles of the header there is no provisional
+     * offset, the frequency needs the whole arc.
+     *
+     * @return the centroids, null if stopped
+     */
+    private double[][] getStreamedCentroids(ImageStack stack, double[] it, boolean knownangles) {
+        int ns = stack.getSize();
+        double[][] centroids = new double[ns][];
+        CORAccumulator cor = new CORAccumulator(0, 0, background);
+        for (int z = 1; z <= ns; z++) {
+            centroids[z - 1] = Centroids.getCentroid(stack, z, background);
+            if (knownangles) {
+                double[] offsets = cor.add(it[z - 1], centroids[z - 1][0], centroids[z - 1][1]);
+                IJ.showStatus(Commons.format(Commons.LANGUAGES.getString("PROVISIONAL_COR"), z, ns,
+                        IJ.d2s(offsets[0], 5, 9), IJ.d2s(offsets[1], 5, 9)));
+            }
+            IJ.showProgress(z, ns);
+            if (IJ.escapePressed()) {
+                IJ.beep();
+                IJ.resetEscape();
+                return null;
+            }
+        }
+        return centroids;
+    }
+
+    private double getRSquared() {
+        double avg = MathUtils.averag(centers);
+        double sst = 0;
+        double sse = 0;
+        for (int i = 0; i < centers.length; i++) {
+            double r = centers[i] - SineFit.f(params, angles[i]);
+            sst += (centers[i] - avg) * (centers[i] - avg);
+            sse += r * r;
+        }
+        return sst > 0 ? 1 - sse / sst : 1;
     }
 
     void showAbout() {
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package NMQC;
+
+import ij.plugin.DICOM;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import utils.*;
+
+/**
+ * Watches the folder where the cameras export their acquisitions. Every new
+ * file is analysed as soon as it stops growing, the test is chosen from its
+ * DICOM header.
+ *
+ * The analyses run in a BatchRunner, when its queue is full the watcher stops
+ * taking new files until a worker is free, so a burst of exports waits on
+ * disk and not on the heap.
+ *
+ * @author alex
+ */
+public class DirectoryWatcher {
+
+    private static final String IMAGE_TYPE = "0008,0008";
+    private static final String SERIES_DESCRIPTION = "0008,103E";
+    private static final String PROTOCOL_NAME = "0018,1030";
+    private static final String SCAN_ARC = "0018,1143";
+    private static final String START_ANGLE = "0054,0200";
+    private static final int MAX_DISPATCHED = 10000;
+
+    private final Path dir;
+    private final BatchRunner runner;
+    private final Map<String, String> rules;
+    private final long settle;
+    private final Map<Path, long[]> pending = new LinkedHashMap<>();
+    // the analysed files and their modification time, the least recently
+    // seen are forgotten first and the deleted ones as soon as they go
+    private final Map<Path, Long> dispatched = new LinkedHashMap<Path, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Long> eldest) {
+            return size() > MAX_DISPATCHED;
+        }
+    };
+
+    /**
+     * Creator
+     *
+     * @param dir the watched directory
+     * @param runner the runner where the analyses are queued
+     * @param rules keywords of the series description or protocol name and
+     * their tests for planar acquisitions, checked in order
+     * @param settle the time in ms a file must keep its size to be considered
+     * complete
+     */
+    public DirectoryWatcher(File dir, BatchRunner runner, Map<String, String> rules, long settle) {
+        this.dir = dir.toPath();
+        this.runner = runner;
+        this.rules = rules;
+        this.settle = settle;
+    }
+
+    /**
+     *
+     * @return the default keywords for planar acquisitions
+     */
+    public static Map<String, String> getDefaultRules() {
+        Map<String, String> result = new LinkedHashMap<>();
+        result.put("UNIF", "Planar_Uniformity");
+        result.put("FLOOD", "Planar_Uniformity");
+        result.put("QUAD", "Bar_Quadrant");
+        // the series are named by the axis of the resolution, LIN_Y is read
+        // with horizontal stripes (test images/Lin_X and Lin_Y)
+        result.put("LIN_X", "IntResol_Linearity(Vertical include)");
+        result.put("LIN_Y", "IntResol_Linearity(Horizontal include)");
+        return result;
+    }
+
+    /**
+     * Reads the keywords for planar acquisitions, a tab separated file with
+     * one 'keyword, test' line per rule. They are checked before the default
+     * ones.
+     *
+     * @param file the rules file
+     * @return the rules
+     * @throws IOException if the file can not be read
+     */
+    public static Map<String, String> readRules(File file) throws IOException {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length < 2) {
+                throw new IOException("Expected 'keyword<TAB>test' in rules line: " + line);
+            }
+            result.put(fields[0].trim().toUpperCase(Locale.ROOT), fields[1].trim());
+        }
+        for (Map.Entry<String, String> entry : getDefaultRules().entrySet()) {
+            result.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Chooses the test for an acquisition: reconstructions go to tomographic
+     * uniformity, projections (tomo image type or scan arc and start angle) to
+     * center of rotation and planar images are matched against the rules.
+     *
+     * @param header the DICOM header
+     * @param rules keywords and their tests for planar acquisitions
+     * @return the test name, null if the acquisition is not recognised
+     */
+    public static String classify(DicomHeader header, Map<String, String> rules) {
+        String type = header.getString(IMAGE_TYPE, "").toUpperCase(Locale.ROOT);
+        if (type.contains("RECON")) {
+            return "Tomographic_Uniformity";
+        }
+        if (type.contains("TOMO") || (header.contains(SCAN_ARC) && header.contains(START_ANGLE))) {
+            return "C_O_R(Sine)";
+        }
+        String description = (header.getString(SERIES_DESCRIPTION, "") + " "
+                + header.getString(PROTOCOL_NAME, "")).toUpperCase(Locale.ROOT);
+        for (Map.Entry<String, String> entry : rules.entrySet()) {
+            if (description.contains(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private void analyze(File file) {
+        try {
+            String Info = new DICOM().getInfo(file.getPath());
+            String test = Info == null ? null : classify(new DicomHeader(Info), rules);
+            if (test == null) {
+                System.out.println("SKIPPED\t" + file + "\t" + "not a recognised QC acquisition");
+                return;
+            }
+            File result = runner.process(file, test);
+            System.out.println("OK\t" + file + "\t" + test + "\t" + result);
+        } catch (Exception ex) {
+            System.err.println("FAILED\t" + file + "\t" + ex);
+        }
+    }
+
+    private void addPending(Path path) {
+        if (pending.containsKey(path) || !Files.isRegularFile(path) || path.getFileName().toString().startsWith(".")) {
+            return;
+        }
+        try {
+            // already analysed and not rewritten since then
+            Long modified = dispatched.get(path);
+            if (modified != null && modified == Files.getLastModifiedTime(path).toMillis()) {
+                return;
+            }
+        } catch (IOException ex) {
+            return;
+        }
+        pending.put(path, new long[]{-1, System.currentTimeMillis()});
+    }
+
+    /**
+     * Dispatches the pending files whose size did not change in the settle
+     * time, waits while the runner queue is full
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void dispatchSettled() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, long[]> entry = it.next();
+            long[] state = entry.getValue();
+            long size;
+            try {
+                size = Files.size(entry.getKey());
+            } catch (IOException ex) {
+                it.remove(); // deleted or moved before it settled
+                continue;
+            }
+            if (size != state[0]) {
+                state[0] = size;
+                state[1] = now;
+            } else if (now - state[1] >= settle) {
+                it.remove();
+                try {
+                    dispatched.put(entry.getKey(), Files.getLastModifiedTime(entry.getKey()).toMillis());
+                } catch (IOException ex) {
+                    continue;
+                }
+                final File file = entry.getKey().toFile();
+                runner.submit(() -> {
+                    analyze(file);
+                    return file;
+                });
+            }
+        }
+    }
+
+    /**
+     * Watches the directory until the thread is interrupted
+     *
+     * @throws IOException if the directory can not be watched
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void watch() throws IOException, InterruptedException {
+        try (WatchService watcher = dir.getFileSystem().newWatchService()) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            System.out.println("Watching " + dir);
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.poll(Math.max(100, settle / 4), java.util.concurrent.TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // events were lost, look for files we do not know yet
+                            dispatched.keySet().removeIf(path -> !Files.exists(path));
+                            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                                for (Path path : files) {
+                                    addPending(path);
+                                }
+                            }
+                        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            Path path = dir.resolve((Path) event.context());
+                            dispatched.remove(path);
+                            pending.remove(path);
+                        } else {
+                            addPending(dir.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        throw new IOException(dir + " is no longer accessible");
+                    }
+                }
+                dispatchSettled();
+            }
+        }
+    }
+
+}
@@ -23,7 +23,9 @@ import ij.measure.*;
 import ij.plugin.RoiEnlarger;
 import ij.plugin.filter.PlugInFilter;
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.util.*;
+import java.util.stream.*;
 import utils.*;
 
 /**
@@ -34,6 +36,9 @@ public class IntResol_Linearity implements PlugInFilter {
 
     private ImagePlus imp;
     private String Method;
+    private boolean parallel = true;
+    private double[][] linesums;
+    private boolean linesumsHorizontal;
     final private int NemaSep = 30;//Nema Phantom line separation in mm
     final private int HalfNemaSep = 15;
 
@@ -58,6 +63,16 @@ public class IntResol_Linearity implements PlugInFilter {
         return DOES_ALL;
     }
 
+    /**
+     * The bins are fitted in parallel by default, the results are the same in
+     * both modes
+     *
+     * @param parallel false to fit the bins one after another
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
     private class myReturnedObjects {
 
         public double pixelsize;
@@ -76,10 +91,15 @@ public class IntResol_Linearity implements PlugInFilter {
 
     }
 
-    private myReturnedObjects getCounts(String Orientation, Roi lroi) {
+    /**
+     * Sets the pixel size, the axes and the number of bins for the roi. The
+     * bins are bands of the profile lines (rows for horizontal stripes,
+     * columns for vertical ones) starting at getBandStart and ceil(dpos)
+     * pixels long.
+     */
+    private myReturnedObjects getBins(String Orientation, Roi lroi) {
         myReturnedObjects result = new myReturnedObjects();
         Calibration cal = imp.getCalibration();
-        float[][] pixels = imp.getProcessor().getFloatArray();
         double vw = cal.pixelWidth;
         double vh = cal.pixelHeight;
         if (Orientation.contains("Horizontal")) {
@@ -87,22 +107,7 @@ public class IntResol_Linearity implements PlugInFilter {
             result.AxisLin = "X";
             result.AxisRes = "Y";
             result.nbins = (int) Math.round(lroi.getFloatWidth() * vw / NemaSep);
-
             result.counts = new double[result.nbins][(int) lroi.getFloatHeight()];
-            double dpos = lroi.getFloatWidth() / (result.nbins - 1);
-
-            for (int j = 0; j < lroi.getFloatHeight(); j++) {
-                for (int i = 0; i < result.nbins; i++) {
-                    for (int k = 0; k < dpos; k++) {
-                        int xi = (int) Math.round(i * dpos + k + lroi.getXBase());
-                        int yi = j + (int) lroi.getYBase();
-                        if (lroi.contains(xi, yi)) {
-                            result.counts[i][j] += pixels[xi][yi];
-                        }
-                    }
-                    result.counts[i][j] /= (int) dpos;
-                }
-            }
         }
 
         if (Orientation.contains("Vertical")) {
@@ -110,27 +115,121 @@ public class IntResol_Linearity implements PlugInFilter {
             result.AxisLin = "Y";
             result.AxisRes = "X";
             result.nbins = (int) Math.floor(lroi.getFloatHeight() * vh / NemaSep);
-
             result.counts = new double[result.nbins][(int) lroi.getFloatWidth()];
-            double dpos = lroi.getFloatHeight() / (result.nbins - 1);
-
-            for (int i = 0; i < lroi.getFloatWidth(); i++) {
-                int xi = i + (int) lroi.getXBase();
-                for (int j = 0; j < result.nbins; j++) {
-                    int yo = (int) Math.round(j * dpos + lroi.getYBase());
-                    for (int k = 0; k < dpos; k++) {
-                        int yi = yo + k;
-                        if (lroi.contains(xi, yi)) {
-                            result.counts[j][i] += pixels[xi][yi];
-                        }
-                    }
-                    result.counts[j][i] /= (int) dpos;
+        }
+        return result;
+    }
+
+    private double getBinWidth(boolean horizontal, Roi lroi, int nbins) {
+        return (horizontal ? lroi.getFloatWidth() : lroi.getFloatHeight()) / (nbins - 1);
+    }
+
+    private int getBandStart(boolean horizontal, Roi lroi, double dpos, int bin) {
+        return (int) Math.round(bin * dpos + (horizontal ? lroi.getXBase() : lroi.getYBase()));
+    }
+
+    private int getLine(boolean horizontal, Roi lroi, int j) {
+        return j + (int) (horizontal ? lroi.getYBase() : lroi.getXBase());
+    }
+
+    /**
+     * Prefix sums of the image along the profile lines, built once per image:
+     * the sum of any band of a line is the difference of two entries.
+     *
+     * @param horizontal true for rows, false for columns
+     * @return the prefix sums, one array per line
+     */
+    private double[][] getLineSums(boolean horizontal) {
+        if (linesums == null || linesumsHorizontal != horizontal) {
+            ImageProcessor ip = imp.getProcessor();
+            int nlines = horizontal ? ip.getHeight() : ip.getWidth();
+            int length = horizontal ? ip.getWidth() : ip.getHeight();
+            double[][] sums = new double[nlines][length + 1];
+            for (int line = 0; line < nlines; line++) {
+                double[] lsums = sums[line];
+                for (int k = 0; k < length; k++) {
+                    lsums[k + 1] = lsums[k] + (horizontal ? ip.getf(k, line) : ip.getf(line, k));
+                }
+            }
+            linesums = sums;
+            linesumsHorizontal = horizontal;
+        }
+        return linesums;
+    }
+
+    /**
+     *
+     * @return the pixels of the line from start to end (excluded) inside the
+     * roi, as start and end pairs
+     */
+    private static int[] getRuns(boolean horizontal, Roi lroi, int line, int start, int end) {
+        int[] runs = new int[8];
+        int n = 0;
+        boolean inside = false;
+        for (int k = start; k <= end; k++) {
+            boolean lin = k < end && (horizontal ? lroi.contains(k, line) : lroi.contains(line, k));
+            if (lin != inside) {
+                if (n == runs.length) {
+                    runs = Arrays.copyOf(runs, 2 * n);
                 }
+                runs[n++] = k;
+                inside = lin;
+            }
+        }
+        return Arrays.copyOf(runs, n);
+    }
+
+    private static double getBandSum(double[] lsums, int[] runs, int start, int end) {
+        double sum = 0;
+        for (int r = 0; r < runs.length; r += 2) {
+            int lo = Math.max(start, runs[r]);
+            int hi = Math.min(end, runs[r + 1]);
+            if (lo < hi) {
+                sum += lsums[hi] - lsums[lo];
+            }
+        }
+        return sum;
+    }
+
+    private myReturnedObjects getCounts(String Orientation, Roi lroi) {
+        myReturnedObjects result = getBins(Orientation, lroi);
+        if (result.counts == null) {
+            return result;
+        }
+        boolean horizontal = Orientation.contains("Horizontal");
+        double[][] sums = getLineSums(horizontal);
+        double dpos = getBinWidth(horizontal, lroi, result.nbins);
+        int length = (int) Math.ceil(dpos);
+        Rectangle bounds = lroi.getBounds();
+        int from = horizontal ? bounds.x : bounds.y;
+        int to = from + (horizontal ? bounds.width : bounds.height);
+        for (int j = 0; j < result.counts[0].length; j++) {
+            int line = getLine(horizontal, lroi, j);
+            int[] runs = getRuns(horizontal, lroi, line, from, to);
+            for (int i = 0; i < result.nbins; i++) {
+                int start = getBandStart(horizontal, lroi, dpos, i);
+                result.counts[i][j] = getBandSum(sums[line], runs, start, start + length) / (int) dpos;
             }
         }
         return result;
     }
 
+    /**
+     *
+     * @return the counts of the first line of the central bin, the one that
+     * collides with a stripe when the roi is too large
+     */
+    private double getCollisionCount(String Orientation, Roi lroi) {
+        myReturnedObjects bins = getBins(Orientation, lroi);
+        boolean horizontal = Orientation.contains("Horizontal");
+        double dpos = getBinWidth(horizontal, lroi, bins.nbins);
+        int start = getBandStart(horizontal, lroi, dpos, bins.nbins / 2);
+        int end = start + (int) Math.ceil(dpos);
+        int line = getLine(horizontal, lroi, 0);
+        int[] runs = getRuns(horizontal, lroi, line, start, end);
+        return getBandSum(getLineSums(horizontal)[line], runs, start, end) / (int) dpos;
+    }
+
     /**
      * This are the output values from Calculate contains the maximum
      * resolution, the mean resolution, some data and the residuals.
@@ -153,6 +252,80 @@ public class IntResol_Linearity implements PlugInFilter {
         }
     }
 
+    /**
+     * Fits the peaks of one bin profile
+     *
+     * @param counts the bin profile
+     * @param lpeakpos the peaks of the central profile
+     * @param npeaks the number of peaks of the central profile
+     * @param maxreference the minimum height of a conformed peak
+     * @param pixelsize the pixel size
+     * @param avoidnonrectangular skip the bin if it has a different number of
+     * peaks than the central profile
+     * @param peakpositions the row of peak positions of this bin
+     * @param x the row of peak indexes of this bin
+     * @return the resolution of every conformed peak, in profile order
+     */
+    private List<FPoint2D> fitBin(double[] counts, int[] lpeakpos, int npeaks, double maxreference,
+            double pixelsize, boolean avoidnonrectangular, double[] peakpositions, double[] x) {
+        List<FPoint2D> result = new ArrayList<>();
+        int[] peakpos = Fitter.findPeaks(counts);
+        // We avoid non rectangular zones if the option is true
+        if (avoidnonrectangular) {
+            if (peakpos.length != npeaks) {
+                return result;
+            }
+        }
+        // Drop peaks that are at lower position than the first reference
+        while (npeaks < peakpos.length && peakpos[0] - lpeakpos[0] < -HalfNemaSep) {
+            peakpos = Arrays.copyOfRange(peakpos, 1, peakpos.length);
+        }
+
+        int lnpeaks = peakpos.length;
+        /**
+         * We split the array by finding the middle between two consecutive
+         * points, for the last point we just take the end of the array
+         */
+        int med = 0;
+        for (int j = 0; j < lnpeaks; j++) {
+            int med1 = j < lnpeaks - 1 ? (int) (0.5 * (peakpos[j] + peakpos[j + 1])) : counts.length;
+            int lsize = med1 - med;
+            double[] arr1 = new double[lsize];
+            double[] x1 = new double[lsize];
+            double tlevel = counts[med];
+            for (int k = 0; k < lsize; k++) {
+                arr1[k] = counts[k + med];
+                x1[k] = k + med;
+                tlevel = Math.max(tlevel, arr1[k]);
+            }
+            double[] params = Fitter.GaussianFit(x1, arr1, false);
+            double ppos = params[2] * pixelsize;
+            // Check the right position for the peak in the array
+            int l = 0;
+            while (peakpos[0] - lpeakpos[l] > HalfNemaSep) {
+                l += 1;
+            }
+            /**
+             * Check if the peak is well conformed: 1. the peak is centered in
+             * the array, borders are lower than 10% of maxima 2. the peak has
+             * enough counts, the maxima is higher than 2 * stddev below
+             * reference level
+             */
+            boolean conformed = (arr1[0] < tlevel * 0.1) && (arr1[lsize - 1] < tlevel * 0.1) && (tlevel > maxreference);
+            med = med1;
+            /**
+             * If conformed then add it to the matrix Only count conformed peaks
+             */
+            if (conformed) {
+                peakpositions[j + l] = ppos;
+                x[j + l] = j + l;
+                //Find the resolution
+                result.add(Fitter.resolution(params, pixelsize));
+            }
+        }
+        return result;
+    }
+
     /**
      *
      * @param list the overlay on which we add the calculated ROIs
@@ -162,17 +335,41 @@ public class IntResol_Linearity implements PlugInFilter {
      * @return several values
      */
     public myoutput Calculate(Overlay list, double cutoff, boolean avoidnonrectangular) {
+        return Calculate(list, new double[]{cutoff}, avoidnonrectangular)[0];
+    }
+
+    /**
+     * Analyses several FOVs in one run: the image statistics, the threshold
+     * hull and the line sums are shared by all of them. The FOVs have their
+     * own bins, so every FOV fits its own profiles.
+     *
+     * @param list the overlay on which we add the calculated ROIs
+     * @param cutoffs the cuttoffs to calculate the ROIs (0.95 for UFOV, 0.75
+     * for CFOV)
+     * @param avoidnonrectangular tell me if you want to avoid non rectangular
+     * shape effects
+     * @return several values for each cutoff
+     */
+    public myoutput[] Calculate(Overlay list, double[] cutoffs, boolean avoidnonrectangular) {
         ImageStatistics is = imp.getStatistics();
+        Roi hull = Commons.getThresholdHull(imp, 0.1 * is.max);
+        myoutput[] result = new myoutput[cutoffs.length];
+        for (int k = 0; k < cutoffs.length; k++) {
+            result[k] = Calculate(list, Commons.shrinkFOV(hull, cutoffs[k]), is.max, avoidnonrectangular);
+        }
+        return result;
+    }
+
+    private myoutput Calculate(Overlay list, Roi UFOV, double max, boolean avoidnonrectangular) {
         myoutput result = new myoutput();
-        Roi UFOV = Commons.getThreshold(imp, 0.1 * is.max, cutoff);
         UFOV.setStrokeColor(Color.yellow);
 
         // We check that the calculated roi doesnt collide with a line strip
-        result.data = getCounts(Method, UFOV);
-        while (result.data.counts[(int) result.data.nbins / 2][0] > is.max * 0.1) {
+        // only the band that would hit a strip is summed at each step
+        while (getCollisionCount(Method, UFOV) > max * 0.1) {
             UFOV = RoiEnlarger.enlarge(UFOV, -1); // the roi is colliding with a line strip, so we reduce it 1 pixel
-            result.data = getCounts(Method, UFOV); // the roi has been reduced so we calculate the data again
         }
+        result.data = getCounts(Method, UFOV);
         list.add(UFOV);
 
         /**
@@ -188,92 +385,52 @@ public class IntResol_Linearity implements PlugInFilter {
         double[][] peakpositions = new double[result.data.nbins][npeaks];
         double[][] x = new double[result.data.nbins][npeaks];
 
+        // The bins are fitted concurrently, each one fills its own rows
+        final int lnpeaks = npeaks;
+        final double[][] counts = result.data.counts;
+        final double pixelsize = result.data.pixelsize;
+        IntStream bins = IntStream.range(0, result.data.nbins);
+        if (parallel) {
+            bins = bins.parallel();
+        }
+        List<List<FPoint2D>> fits = bins.mapToObj(i -> fitBin(counts[i], lpeakpos, lnpeaks, maxreference,
+                pixelsize, avoidnonrectangular, peakpositions[i], x[i])).collect(Collectors.toList());
+        // and the resolutions are reduced in bin order, as in a serial run
+        IJ.showProgress(0.5);
         int countpeaks = 0;
-        for (int i = 0; i < result.data.nbins; i++) {
-            IJ.showProgress(i / result.data.nbins / 2);
-            int[] peakpos = Fitter.findPeaks(result.data.counts[i]);
-            // We avoid non rectangular zones if the option is true
-            if (avoidnonrectangular) {
-                if (peakpos.length != npeaks) {
-                    continue;
-                }
-            }
-            // Drop peaks that are at lower position than the first reference
-            while (npeaks < peakpos.length) {
-                if (peakpos[0] - lpeakpos[0] < -HalfNemaSep) {
-                    peakpos = Arrays.copyOfRange(peakpos, 1, peakpos.length);
-                }
-            }
-
-            int lnpeaks = peakpos.length;
-            /**
-             * We split the array by finding the middle between two consecutive
-             * points, for the last point we just take the end of the array
-             */
-            int med = 0;
-            for (int j = 0; j < lnpeaks; j++) {
-                int med1 = j < lnpeaks - 1 ? (int) (0.5 * (peakpos[j] + peakpos[j + 1])) : result.data.counts[i].length;
-                int lsize = med1 - med;
-                double[] arr1 = new double[lsize];
-                double[] x1 = new double[lsize];
-                double tlevel = result.data.counts[i][med];
-                for (int k = 0; k < lsize; k++) {
-                    arr1[k] = result.data.counts[i][k + med];
-                    x1[k] = k + med;
-                    tlevel = Math.max(tlevel, arr1[k]);
-                }
-                double ppos = Fitter.peakpos(x1, arr1, false) * result.data.pixelsize;
-                // Check the right position for the peak in the array
-                int l = 0;
-                while (peakpos[0] - lpeakpos[l] > HalfNemaSep) {
-                    l += 1;
-                }
-                /**
-                 * Check if the peak is well conformed: 1. the peak is centered
-                 * in the array, borders are lower than 10% of maxima 2. the
-                 * peak has enough counts, the maxima is higher than 2 * stddev
-                 * below reference level
-                 */
-                boolean conformed = (arr1[0] < tlevel * 0.1) && (arr1[lsize - 1] < tlevel * 0.1) && (tlevel > maxreference);
-                med = med1;
-                /**
-                 * If conformed then add it to the matrix Only count conformed
-                 * peaks
-                 */
-                if (conformed) {
-                    peakpositions[i][j + l] = ppos;
-                    x[i][j + l] = j + l;
-                    //Find the resolution
-                    FPoint2D tresol = Fitter.resolution(x1, arr1, result.data.pixelsize, false);
-                    if (tresol.getX() > result.resol.getX()) {
-                        result.resol = tresol;
-                    }
-                    result.meanresol.add(tresol);
-                    countpeaks += 1;
+        for (List<FPoint2D> lfits : fits) {
+            for (FPoint2D tresol : lfits) {
+                if (tresol.getX() > result.resol.getX()) {
+                    result.resol = tresol;
                 }
+                result.meanresol.add(tresol);
+                countpeaks += 1;
             }
         }
         result.meanresol.divide(countpeaks);
 
         //MathUtils.PrintMatrix(peakpositions);
         // Final step to get residuals in linear fit for Linearity
+        // one regression and one pair of arrays for all the stripes
+        LinearRegression lr = new LinearRegression();
+        double[] newx = new double[result.data.nbins];
+        double[] newpos = new double[result.data.nbins];
         for (int j = 0; j < npeaks; j++) {
             IJ.showProgress(0.5 + j / npeaks / 2);
-            ArrayList<Double> lnewx = new ArrayList();
-            ArrayList<Double> lnewpos = new ArrayList();
+            int count = 0;
             for (int i = 0; i < result.data.nbins; i++) {
                 if (peakpositions[i][j] != 0) {
-                    lnewx.add(x[i][j]);
-                    lnewpos.add(peakpositions[i][j]);
+                    newx[count] = x[i][j];
+                    newpos[count] = peakpositions[i][j];
+                    count++;
                 }
             }
-            double[] newx = Commons.toPrimitive(lnewx.toArray(new Double[0]));
-            double[] newpos = Commons.toPrimitive(lnewpos.toArray(new Double[0]));
-            double[] tresiduals = Fitter.getResidualsinLinearFit(newx, newpos, false);
-            double a = MathUtils.Max(tresiduals);
+            lr.clear();
+            lr.add(newx, newpos, count);
+            double a = lr.getMaxResidual(newx, newpos, count);
 
             result.maxresidual = Math.max(result.maxresidual, a);
-            result.stddevresidual = Math.max(result.stddevresidual, MathUtils.StdDev(newpos));
+            result.stddevresidual = Math.max(result.stddevresidual, count > 0 ? lr.getStdDevY() : Double.NaN);
         }
         IJ.showProgress(1.0);
         return result;
@@ -288,9 +445,26 @@ public class IntResol_Linearity implements PlugInFilter {
         Overlay list = new Overlay();
         boolean avoidrect = Method.contains("exclude");
         String forTitle = avoidrect ? " rectangular" : " shaped";
-        myoutput r1 = Calculate(list, 0.95, avoidrect);
-        myoutput r2 = Calculate(list, 0.75, avoidrect);
+        ResultsTable rt = getResults(list);
         imp.setOverlay(list);
+        rt.show(Commons.LANGUAGES.getString("INTRINSIC_RESOLUTION_AND_LINEARITY") + imp.getTitle() + forTitle);
+
+        FileInfo fi = imp.getOriginalFileInfo();
+        Commons.saveRT(rt, fi.directory, fi.fileName + "-" + forTitle);
+    }
+
+    /**
+     * Computes resolution and linearity for UFOV and CFOV without opening any
+     * window
+     *
+     * @param list the overlay on which we add the calculated ROIs
+     * @return the results table
+     */
+    public ResultsTable getResults(Overlay list) {
+        boolean avoidrect = Method.contains("exclude");
+        myoutput[] r = Calculate(list, new double[]{0.95, 0.75}, avoidrect);
+        myoutput r1 = r[0];
+        myoutput r2 = r[1];
         ResultsTable rt = new ResultsTable();
         rt.incrementCounter();
         rt.addValue(Commons.LANGUAGES.getString("TEST"), Commons.LANGUAGES.getString("NUMBER_OF_BINS"));
@@ -321,10 +495,7 @@ public class IntResol_Linearity implements PlugInFilter {
         rt.addValue("UFOV", IJ.d2s(r1.stddevresidual, 4, 9));
         rt.addValue("CFOV", IJ.d2s(r2.stddevresidual, 4, 9));
         rt.showRowNumbers(false);
-        rt.show(Commons.LANGUAGES.getString("INTRINSIC_RESOLUTION_AND_LINEARITY") + imp.getTitle() + forTitle);
-
-        FileInfo fi = imp.getOriginalFileInfo();
-        Commons.saveRT(rt, fi.directory, fi.fileName + "-" + forTitle);
+        return rt;
     }
 
     void showAbout() {
@@ -33,8 +33,6 @@ import utils.*;
 public class Planar_Uniformity implements PlugInFilter {
 
     private ImagePlus imp;
-    private FPoint2D minvalue;
-    private FPoint2D maxvalue;
 
     /**
      *
@@ -54,18 +52,23 @@ public class Planar_Uniformity implements PlugInFilter {
         }
 
         this.imp = imp;
-        this.minvalue = new FPoint2D(0, 0);
-        this.maxvalue = new FPoint2D(0, 0);
         return DOES_ALL;
     }
 
-    private class outputvalues {
+    /**
+     * The output values for each FOV
+     */
+    public static class outputvalues {
 
         double IU;
         double DU;
         double min;
         double max;
         double mean;
+        Roi FOV;
+        Roi lFOV;
+        FPoint2D minvalue;
+        FPoint2D maxvalue;
 
         public outputvalues() {
             IU = 0;
@@ -73,131 +76,90 @@ public class Planar_Uniformity implements PlugInFilter {
             min = 0;
             max = 0;
             mean = 0;
+            FOV = null;
+            lFOV = null;
+            minvalue = new FPoint2D(0, 0);
+            maxvalue = new FPoint2D(0, 0);
         }
     }
 
-    private outputvalues getUniformity(ImagePlus imp, Roi sFOV, int shrinkfactor) {
+    /**
+     * The rebinned and convolved flood with the values of all FOVs
+     */
+    public static class myoutput {
+
+        ImageProcessor convolved;
+        outputvalues[] fovs;
+
+        public myoutput() {
+            convolved = null;
+            fovs = null;
+        }
+    }
+
+    /**
+     * Rebins and convolves the flood once and evaluates all the FOVs on it.
+     *
+     * @param imp The flood image
+     * @param cutoffs The FOV fractions (0.95 for UFOV, 0.75 for CFOV, ...)
+     * @return the convolved image and the values for each cutoff
+     */
+    public static myoutput Calculate(ImagePlus imp, double[] cutoffs) {
+        myoutput result = new myoutput();
+        int n = cutoffs.length;
+        int shrinkfactor = Math.max(1, (int) Math.round(imp.getHeight() / 64));
+        double gmax = imp.getStatistics().max;
+        Roi hull = Commons.getThresholdHull(imp, gmax * 0.1);
+
         // Rebin the original image to achieve pixel size around 6mm
         Binner bin = new Binner();
         ImageProcessor ip2 = bin.shrink(imp.getProcessor(), shrinkfactor, shrinkfactor, Binner.SUM);
-        ImagePlus imp2 = new ImagePlus(Commons.LANGUAGES.getString("CONVOLVED") + sFOV.getName(), ip2);
-        // Shrink the ROI too to perform the calculation
+        // Shrink the ROIs too to perform the calculation
         double scale = 1.0 / shrinkfactor;
-        Roi lFOV = RoiScaler.scale(sFOV, scale, scale, false);
-        lFOV = RoiEnlarger.enlarge(lFOV, -1);//To avoid boundaries
-        lFOV.setStrokeColor(Color.yellow);
+        FOVMask[] masks = new FOVMask[n];
+        result.fovs = new outputvalues[n];
+        for (int k = 0; k < n; k++) {
+            result.fovs[k] = new outputvalues();
+            result.fovs[k].FOV = Commons.shrinkFOV(hull, cutoffs[k]);
+            Roi lFOV = RoiScaler.scale(result.fovs[k].FOV, scale, scale, false);
+            lFOV = RoiEnlarger.enlarge(lFOV, -1);//To avoid boundaries
+            result.fovs[k].lFOV = lFOV;
+            // Rasterise the FOV once, every test below is a mask lookup
+            masks[k] = new FOVMask(lFOV, ip2.getWidth(), ip2.getHeight());
+        }
         // Getting the first results
-        outputvalues result = new outputvalues();
-        imp2.setRoi(lFOV);
-        ImageStatistics is = imp2.getStatistics();
-        result.min = is.min;
-        result.max = is.max;
-        result.mean = is.mean;
-        imp2.deleteRoi();
-        Overlay list = new Overlay();
-        list.add(lFOV);
+        Uniformity.outputvalues[] is = Uniformity.getStatistics(ip2, masks);
         // Convolve the image as required by NEMA procedure
         float[] kernel = {1, 2, 1, 2, 4, 2, 1, 2, 1};
         Convolver cv = new Convolver();
         cv.setNormalize(true);
         cv.convolve(ip2, kernel, 3, 3);
-        ip2.setMinAndMax(is.min, is.max);
-        imp2.updateAndDraw();
-        ImageStatistics is0 = ip2.getStatistics();
-
-        float[][] pixels = ip2.getFloatArray();
-        int w = ip2.getWidth();
-        int h = ip2.getHeight();
-
-        double globalmin = is0.max;
-        double globalmax = is0.min;
-        FPoint2D PBase = new FPoint2D(sFOV.getBounds().x / shrinkfactor, sFOV.getBounds().y / shrinkfactor);
-
-        for (int j = (int) Math.round(PBase.getY()); j < lFOV.getFloatHeight() + PBase.getY(); j++) {
-            for (int i = (int) Math.round(PBase.getX()); i < lFOV.getFloatWidth() + PBase.getX(); i++) {
-                if (lFOV.contains(i, j)) {
-                    // getting pixel value global boundaries
-                    if (pixels[i][j] < globalmin) {
-                        globalmin = pixels[i][j];
-                        minvalue.assign(i, j);
-                    }
-                    if (pixels[i][j] > globalmax) {
-                        globalmax = pixels[i][j];
-                        maxvalue.assign(i, j);
-                    }
-                    // Finding local boundaries by rows
-                    float localmin = pixels[i][j];
-                    float localmax = pixels[i][j];
-                    for (int k = -2; k <= 2; k++) {
-                        int x = Math.max(0, Math.min(w - 1, i + k));
-                        if (lFOV.contains(x, j)) {
-                            if (pixels[x][j] < localmin) {
-                                localmin = pixels[x][j];
-                            }
-                            if (pixels[x][j] > localmax) {
-                                localmax = pixels[x][j];
-                            }
-                        }
-                    }
-                    result.DU = Math.max(result.DU, MathUtils.Contrast(localmin, localmax));
-                    // Finding local boundaries by columns
-                    localmin = pixels[i][j];
-                    localmax = pixels[i][j];
-                    for (int l = -2; l <= 2; l++) {
-                        int y = Math.max(0, Math.min(h - 1, j + l));
-                        if (lFOV.contains(i, y)) {
-                            if (pixels[i][y] < localmin) {
-                                localmin = pixels[i][y];
-                            }
-                            if (pixels[i][y] > localmax) {
-                                localmax = pixels[i][y];
-                            }
-                        }
-                    }
-                    result.DU = Math.max(result.DU, MathUtils.Contrast(localmin, localmax));
-                }
-            }
+        Uniformity.outputvalues[] uv = Uniformity.getUniformity(ip2, masks, Uniformity.NEMAWINDOW);
+        for (int k = 0; k < n; k++) {
+            outputvalues lresult = result.fovs[k];
+            lresult.min = is[k].min;
+            lresult.max = is[k].max;
+            lresult.mean = is[k].mean;
+            lresult.DU = uv[k].DU;
+            lresult.IU = uv[k].IU;
+            lresult.minvalue.assign(uv[k].xmin, uv[k].ymin);
+            lresult.maxvalue.assign(uv[k].xmax, uv[k].ymax);
         }
-
-        result.IU = MathUtils.Contrast(globalmin, globalmax);
-
-        // Add the global boundaries as displayed points
-        PointRoi minPointRoi = new PointRoi(minvalue.getX(), minvalue.getY());
-        minPointRoi.setStrokeColor(Color.blue);
-        list.add(minPointRoi);
-        PointRoi maxPointRoi = new PointRoi(maxvalue.getX(), maxvalue.getY());
-        maxPointRoi.setStrokeColor(Color.red);
-        list.add(maxPointRoi);
-
-        ip2.setMinAndMax(globalmin, globalmax);
-        imp2.setOverlay(list);
-        imp2.show();
-        //RM.runCommand(imp2, "Show All");
-
+        ip2.setMinAndMax(uv[0].min, uv[0].max);
+        result.convolved = ip2;
         return result;
     }
 
     /**
+     * Computes the uniformity of the flood without opening any window
      *
-     * @param ip The image processor
+     * @param result The output of Calculate for UFOV and CFOV
+     * @return the results table
      */
-    @Override
-    public void run(ImageProcessor ip) {
+    public static ResultsTable getResults(myoutput result) {
         ResultsTable rt = new ResultsTable();
-        Overlay list = new Overlay();
-
-        Roi FOV;
-        int shrinkfactor = Math.max(1, (int) Math.round(imp.getHeight() / 64));
-        double gmax = imp.getStatistics().max;
-
-        FOV = Commons.getThreshold(imp, gmax * 0.1, 0.95);
-        FOV.setStrokeColor(Color.yellow);
-        list.add(FOV);
-        outputvalues UFOV = getUniformity(imp, FOV, shrinkfactor);
-        FOV = Commons.getThreshold(imp, gmax * 0.1, 0.75);
-        FOV.setStrokeColor(Color.red);
-        list.add(FOV);
-        outputvalues CFOV = getUniformity(imp, FOV, shrinkfactor);
+        outputvalues UFOV = result.fovs[0];
+        outputvalues CFOV = result.fovs[1];
 
         rt.incrementCounter();
         rt.addValue(Commons.LANGUAGES.getString("TEST"), Commons.LANGUAGES.getString("DIFFERENTIAL_UNIFORMITY"));
@@ -221,6 +183,49 @@ public class Planar_Uniformity implements PlugInFilter {
         rt.addValue("CFOV", CFOV.min);
 
         rt.showRowNumbers(true);
+        return rt;
+    }
+
+    /**
+     *
+     * @param imp The flood image
+     * @return the results table for UFOV and CFOV
+     */
+    public static ResultsTable getResults(ImagePlus imp) {
+        return getResults(Calculate(imp, new double[]{0.95, 0.75}));
+    }
+
+    /**
+     *
+     * @param ip The image processor
+     */
+    @Override
+    public void run(ImageProcessor ip) {
+        Overlay list = new Overlay();
+        Overlay list2 = new Overlay();
+        Color[] colors = {Color.yellow, Color.red};
+
+        myoutput result = Calculate(imp, new double[]{0.95, 0.75});
+        for (int k = 0; k < result.fovs.length; k++) {
+            outputvalues lresult = result.fovs[k];
+            lresult.FOV.setStrokeColor(colors[k]);
+            list.add(lresult.FOV);
+            lresult.lFOV.setStrokeColor(colors[k]);
+            list2.add(lresult.lFOV);
+            // Add the global boundaries as displayed points
+            PointRoi minPointRoi = new PointRoi(lresult.minvalue.getX(), lresult.minvalue.getY());
+            minPointRoi.setStrokeColor(Color.blue);
+            list2.add(minPointRoi);
+            PointRoi maxPointRoi = new PointRoi(lresult.maxvalue.getX(), lresult.maxvalue.getY());
+            maxPointRoi.setStrokeColor(Color.red);
+            list2.add(maxPointRoi);
+        }
+
+        ImagePlus imp2 = new ImagePlus(Commons.LANGUAGES.getString("CONVOLVED") + imp.getTitle(), result.convolved);
+        imp2.setOverlay(list2);
+        imp2.show();
+
+        ResultsTable rt = getResults(result);
         rt.show(Commons.LANGUAGES.getString("PLANAR_UNIFORMITY") + imp.getTitle());
 
         imp.setOverlay(list);
@@ -25,6 +25,8 @@ import ij.plugin.filter.*;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Polygon;
+import java.util.*;
+import java.util.stream.*;
 import utils.*;
 
 /**
@@ -33,6 +35,10 @@ import utils.*;
  */
 public class Tomographic_Contrast implements PlugInFilter {
 
+    private static final int MINSPHEREVOXELS = 27;
+    private static final double MAXSPHERERADIUS = 0.25; // of the FOV radius
+    private static final double MAXELONGATION = 2; // rods and bands are not spheres
+
     private ImagePlus imp;
     private ImageProcessor ip2;
     private String Method;
@@ -41,6 +47,8 @@ public class Tomographic_Contrast implements PlugInFilter {
     private double unif;
     private double tolerance;
     private int send;
+    private int sinit;
+    private boolean coldsph = true;
 
     /**
      *
@@ -69,41 +77,49 @@ public class Tomographic_Contrast implements PlugInFilter {
         return DOES_ALL;
     }
 
-    private Polygon Calculate() {
+    private boolean showDialog() {
         int ns = imp.getStackSize();
-        int sinit;
-        send = imp.getCurrentSlice();
-        boolean coldsph = true;
-        // Dialog
+        coldsph = true;
         if (ns > 1) {
             GenericDialog gd = new GenericDialog(Commons.LANGUAGES.getString("TOMOGRAPHIC_CONTRAST"));
             gd.addNumericField(Commons.LANGUAGES.getString("UNIFORMITY_FRAME"), 1, 0);
             gd.addCheckbox(Commons.LANGUAGES.getString("COLD_SPHERES"), true);
             gd.showDialog();
             if (gd.wasCanceled()) {
-                return null;
+                return false;
             }
             sinit = (int) Math.round(gd.getNextNumber());
             coldsph = gd.getNextBoolean();
         } else {
             sinit = 1;
         }
+        return true;
+    }
+
+    private Polygon Calculate() {
+        send = imp.getCurrentSlice();
+        // Dialog
+        if (!showDialog()) {
+            return null;
+        }
 
         getThresholdValues(sinit);
 
         // Building a temporary matrix to find the peaks
         ip2 = imp.getImageStack().getProcessor(send);
-        float[][] pixels = ip2.getFloatArray();
-        float[][] ip2mat = new float[ip2.getWidth()][ip2.getHeight()];
-        for (int i = 0; i < ip2.getWidth(); i++) {
-            for (int j = 0; j < ip2.getHeight(); j++) {
-                if (FOV.contains(i, j)) {
+        FloatProcessor ipt = StackReduction.reduce(imp.getImageStack(), send, send, StackReduction.SUM);
+        float[] pixels = (float[]) ipt.getPixels();
+        int w = ipt.getWidth();
+        for (int j = 0, i = 0; j < ipt.getHeight(); j++) {
+            for (int x = 0; x < w; x++, i++) {
+                if (FOV.contains(x, j)) {
                     // If spheres are cold put them hot, if they are hot keep them as hot
-                    ip2mat[i][j] += coldsph ? unif - pixels[i][j] : pixels[i][j] - unif;
+                    pixels[i] = (float) (coldsph ? unif - pixels[i] : pixels[i] - unif);
+                } else {
+                    pixels[i] = 0;
                 }
             }
         }
-        FloatProcessor ipt = new FloatProcessor(ip2mat);
 
         // Finding all the peaks
         MaximumFinder mf = new MaximumFinder();
@@ -128,35 +144,286 @@ public class Tomographic_Contrast implements PlugInFilter {
         return maxs != null;
     }
 
-    private double PointDistance(double x1, double y1, double x2, double y2) {
-        return Math.sqrt(Math.pow(y2 - y1, 2) + Math.pow(x2 - x1, 2));
-    }
-
     private boolean MethodManual() {
 
         Polygon tmaxs = Calculate();
+        if (tmaxs == null) {
+            return false;
+        }
         ip2 = imp.getImageStack().getProcessor(send);
         Polygon proi = imp.getRoi().getPolygon();
         int npoints = proi.npoints;
         double maxr = FOV.getFeretsDiameter() / npoints;
         maxs = new Polygon();
+        // every point takes the strongest maximum closer than maxr, the
+        // maxima are sorted by value
+        SpatialIndex index = new SpatialIndex(tmaxs, maxr);
         for (int i = 0; i < npoints; i++) {
-            for (int j = 0; j < tmaxs.npoints; j++) {
-                if (PointDistance(proi.xpoints[i], proi.ypoints[i], tmaxs.xpoints[j], tmaxs.ypoints[j]) < maxr) {
-                    maxs.addPoint(tmaxs.xpoints[j], tmaxs.ypoints[j]);
-                    break;
-                }
+            int j = index.getFirst(proi.xpoints[i], proi.ypoints[i], maxr);
+            if (j >= 0) {
+                maxs.addPoint(tmaxs.xpoints[j], tmaxs.ypoints[j]);
             }
         }
         return maxs.npoints > 0;
     }
 
+    /**
+     * Finds the spheres in the whole volume: the 3D local maxima above the
+     * tolerance of the 3x3x3 smoothed volume, searched in parallel slices,
+     * grow into the connected voxels above half of their peak, strongest
+     * first. Regions too small, too large or elongated are not spheres. Every
+     * sphere gives its weighted centroid and the radius of the sphere of the
+     * same volume, the contrast is measured in that spherical VOI of the
+     * original image.
+     *
+     * @param sinit the uniformity slice
+     * @param coldsph true if the spheres are cold
+     * @return the results table, one row per sphere
+     */
+    public ResultsTable getVolumeResults(int sinit, boolean coldsph) {
+        getThresholdValues(sinit);
+        ImageStack stack = imp.getImageStack();
+        int w = stack.getWidth();
+        int h = stack.getHeight();
+        int ns = stack.getSize();
+        FOVMask mask = new FOVMask(FOV, w, h);
+        // If spheres are cold put them hot, if they are hot keep them as hot.
+        // The slices out of the phantom (mean under half of the uniformity
+        // mean) are left out
+        float[][] hot = IntStream.rangeClosed(1, ns).parallel().mapToObj(z -> {
+            float[] pixels = (float[]) StackReduction.reduce(stack, z, z, StackReduction.SUM).getPixels();
+            double sum = 0;
+            for (int i = 0; i < pixels.length; i++) {
+                sum += mask.contains(i) ? pixels[i] : 0;
+            }
+            boolean inside = sum >= 0.5 * unif * mask.getCount();
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = inside && mask.contains(i) ? (float) (coldsph ? unif - pixels[i] : pixels[i] - unif) : 0;
+            }
+            return pixels;
+        }).toArray(float[][]::new);
+        // matched to the smallest spheres: mean in a 3x3x3 box
+        float[][] smooth = IntStream.range(0, ns).parallel()
+                .mapToObj(z -> getBoxMean(hot, z, w, h)).toArray(float[][]::new);
+
+        List<int[]> maxima = IntStream.range(0, ns).parallel()
+                .mapToObj(z -> getLocalMaxima(smooth, z, w, h)).flatMap(List::stream).collect(Collectors.toList());
+        maxima.sort((m1, m2) -> Float.compare(smooth[m2[1]][m2[0]], smooth[m1[1]][m1[0]]));
+
+        Calibration cal = imp.getCalibration();
+        double pw = cal.pixelWidth;
+        double ph = cal.pixelHeight;
+        double pd = Math.abs(cal.pixelDepth);
+        double fovradius = Math.sqrt(mask.getCount() * pw * ph / Math.PI);
+        int[][] labels = new int[ns][w * h];
+        ResultsTable rt = new ResultsTable();
+        int nspheres = 0;
+        for (int[] max : maxima) {
+            if (labels[max[1]][max[0]] != 0) {
+                continue;
+            }
+            double[] sphere = growSphere(smooth, labels, max, w, h, -1 - nspheres);
+            double radius = Math.cbrt(3 * sphere[3] * pw * ph * pd / (4 * Math.PI));
+            double sx = sphere[4] * pw, sy = sphere[5] * ph, sz = sphere[6] * pd;
+            double elongation = Math.max(sx, Math.max(sy, sz)) / Math.min(sx, Math.min(sy, sz));
+            if (sphere[3] < MINSPHEREVOXELS || radius > MAXSPHERERADIUS * fovradius || !(elongation <= MAXELONGATION)) {
+                continue;
+            }
+            nspheres++;
+            double voi = getSphereMean(stack, sphere, radius, pw, ph, pd);
+            rt.incrementCounter();
+            rt.addValue(Commons.LANGUAGES.getString("SPHERE"), nspheres);
+            rt.addValue("x", sphere[0]);
+            rt.addValue("y", sphere[1]);
+            rt.addValue("z", sphere[2]);
+            rt.addValue(Commons.LANGUAGES.getString("RADIUS") + " (" + cal.getUnit() + ")", radius);
+            rt.addValue(Commons.LANGUAGES.getString("VALUE"), voi);
+            rt.addValue(Commons.LANGUAGES.getString("MEAN"), unif);
+            rt.addValue(Commons.LANGUAGES.getString("CONTRAST"), MathUtils.Contrast(unif, voi));
+            rt.addValue(Commons.LANGUAGES.getString("RECOVERY"), unif == 0 ? 0 : 100 * Math.abs(unif - voi) / unif);
+        }
+        rt.showRowNumbers(false);
+        return rt;
+    }
+
+    /**
+     *
+     * @return the mean of every voxel of a slice and its 26 neighbours
+     */
+    private static float[] getBoxMean(float[][] volume, int z, int w, int h) {
+        int ns = volume.length;
+        float[] result = new float[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                double sum = 0;
+                int count = 0;
+                for (int nz = Math.max(0, z - 1); nz <= Math.min(ns - 1, z + 1); nz++) {
+                    for (int ny = Math.max(0, y - 1); ny <= Math.min(h - 1, y + 1); ny++) {
+                        for (int nx = Math.max(0, x - 1); nx <= Math.min(w - 1, x + 1); nx++) {
+                            sum += volume[nz][ny * w + nx];
+                            count++;
+                        }
+                    }
+                }
+                result[y * w + x] = (float) (sum / count);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The voxels of a slice above the tolerance and not below any of their 26
+     * neighbours, ties go to the first one in raster order
+     *
+     * @return x + y * w and z of every maximum
+     */
+    private List<int[]> getLocalMaxima(float[][] hot, int z, int w, int h) {
+        List<int[]> result = new ArrayList<>();
+        int ns = hot.length;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                float v = hot[z][y * w + x];
+                if (!(v > tolerance)) {
+                    continue;
+                }
+                boolean ismax = true;
+                for (int dz = -1; dz <= 1 && ismax; dz++) {
+                    for (int dy = -1; dy <= 1 && ismax; dy++) {
+                        for (int dx = -1; dx <= 1 && ismax; dx++) {
+                            int nx = x + dx, ny = y + dy, nz = z + dz;
+                            if ((dx == 0 && dy == 0 && dz == 0) || nx < 0 || ny < 0 || nz < 0 || nx >= w || ny >= h || nz >= ns) {
+                                continue;
+                            }
+                            float n = hot[nz][ny * w + nx];
+                            boolean before = dz < 0 || (dz == 0 && (dy < 0 || (dy == 0 && dx < 0)));
+                            ismax = before ? v > n : v >= n;
+                        }
+                    }
+                }
+                if (ismax) {
+                    result.add(new int[]{y * w + x, z});
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Labels the 26 connected voxels above half of the peak
+     *
+     * @return the weighted centroid x, y, z, the number of voxels and the
+     * standard deviations of the voxel positions in x, y and z
+     */
+    private static double[] growSphere(float[][] hot, int[][] labels, int[] max, int w, int h, int label) {
+        int ns = hot.length;
+        float half = hot[max[1]][max[0]] / 2;
+        double sum = 0, xsum = 0, ysum = 0, zsum = 0;
+        double x1sum = 0, y1sum = 0, z1sum = 0;
+        double x2sum = 0, y2sum = 0, z2sum = 0;
+        int count = 0;
+        Deque<int[]> queue = new ArrayDeque<>();
+        labels[max[1]][max[0]] = label;
+        queue.add(max);
+        while (!queue.isEmpty()) {
+            int[] voxel = queue.poll();
+            int x = voxel[0] % w, y = voxel[0] / w, z = voxel[1];
+            double v = hot[z][voxel[0]];
+            sum += v;
+            xsum += x * v;
+            ysum += y * v;
+            zsum += z * v;
+            x1sum += x;
+            y1sum += y;
+            z1sum += z;
+            x2sum += x * x;
+            y2sum += y * y;
+            z2sum += z * z;
+            count++;
+            for (int dz = -1; dz <= 1; dz++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int nx = x + dx, ny = y + dy, nz = z + dz;
+                        if (nx < 0 || ny < 0 || nz < 0 || nx >= w || ny >= h || nz >= ns) {
+                            continue;
+                        }
+                        int index = ny * w + nx;
+                        if (labels[nz][index] == 0 && hot[nz][index] >= half) {
+                            labels[nz][index] = label;
+                            queue.add(new int[]{index, nz});
+                        }
+                    }
+                }
+            }
+        }
+        // the centers of the voxels are at .5, slices numbered from 1
+        // a voxel spreads 1/12 in every axis
+        return new double[]{xsum / sum + 0.5, ysum / sum + 0.5, zsum / sum + 1, count,
+            Math.sqrt(x2sum / count - (x1sum / count) * (x1sum / count) + 1.0 / 12),
+            Math.sqrt(y2sum / count - (y1sum / count) * (y1sum / count) + 1.0 / 12),
+            Math.sqrt(z2sum / count - (z1sum / count) * (z1sum / count) + 1.0 / 12)};
+    }
+
+    /**
+     *
+     * @return the mean of the original image in the spherical VOI
+     */
+    private static double getSphereMean(ImageStack stack, double[] sphere, double radius, double pw, double ph, double pd) {
+        int w = stack.getWidth();
+        int h = stack.getHeight();
+        int x0 = Math.max(0, (int) Math.floor(sphere[0] - radius / pw));
+        int x1 = Math.min(w - 1, (int) Math.ceil(sphere[0] + radius / pw));
+        int y0 = Math.max(0, (int) Math.floor(sphere[1] - radius / ph));
+        int y1 = Math.min(h - 1, (int) Math.ceil(sphere[1] + radius / ph));
+        int z0 = Math.max(1, (int) Math.floor(sphere[2] - radius / pd));
+        int z1 = Math.min(stack.getSize(), (int) Math.ceil(sphere[2] + radius / pd));
+        double sum = 0;
+        int count = 0;
+        for (int z = z0; z <= z1; z++) {
+            ImageProcessor lip = stack.getProcessor(z);
+            double dz = (z - sphere[2]) * pd;
+            for (int y = y0; y <= y1; y++) {
+                double dy = (y + 0.5 - sphere[1]) * ph;
+                for (int x = x0; x <= x1; x++) {
+                    double dx = (x + 0.5 - sphere[0]) * pw;
+                    if (dx * dx + dy * dy + dz * dz <= radius * radius) {
+                        sum += lip.getf(x, y);
+                        count++;
+                    }
+                }
+            }
+        }
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
     /**
      *
      * @param ip The image processor
      */
     @Override
     public void run(ImageProcessor ip) {
+        if (Method.contains("Volume")) {
+            if (!showDialog()) {
+                return;
+            }
+            ResultsTable rt = getVolumeResults(sinit, coldsph);
+            Overlay list = new Overlay();
+            for (int i = 0; i < rt.size(); i++) {
+                PointRoi tpoint = new PointRoi(rt.getValue("x", i), rt.getValue("y", i));
+                tpoint.setFillColor(Color.yellow);
+                tpoint.setPosition((int) Math.round(rt.getValue("z", i)));
+                list.add(tpoint, Commons.LANGUAGES.getString("SPHERE") + (i + 1));
+            }
+            list.drawNames(true);
+            String lname = imp.getTitle() + "-" + Method;
+            ImagePlus imp2 = new ImagePlus(lname, imp.getImageStack());
+            imp2.setCalibration(imp.getCalibration());
+            imp2.setOverlay(list);
+            imp2.show();
+            rt.show(Commons.LANGUAGES.getString("TOMOGRAPHIC_CONTRAST") + lname);
+            FileInfo fi = imp.getOriginalFileInfo();
+            Commons.saveRT(rt, fi.directory, lname);
+            return;
+        }
         // Variables
         ResultsTable rt = new ResultsTable();
         if (Method.contains("Automatic")) {
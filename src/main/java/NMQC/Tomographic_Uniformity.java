@@ -22,7 +22,8 @@ import ij.process.*;
 import ij.measure.*;
 import ij.plugin.RoiEnlarger;
 import ij.plugin.filter.*;
-import utils.FPoint2D;
+import java.util.*;
+import java.util.stream.*;
 import ij.util.*;
 import utils.*;
 
@@ -33,6 +34,14 @@ import utils.*;
 public class Tomographic_Uniformity implements PlugInFilter {
 
     private ImagePlus imp;
+    private ImagePlus imp2;
+    private String lname;
+    private String Method;
+    private Roi lFOV;
+    private RadialSampler rays;
+    private int nangles = 360;
+    private double rstep = 1;
+    private boolean bilinear = false;
 
     /**
      *
@@ -51,59 +60,133 @@ public class Tomographic_Uniformity implements PlugInFilter {
             return DONE;
         }
 
+        this.Method = arg;
         this.imp = imp;
         return DOES_ALL;
     }
 
+    /**
+     * The rays of the ring analysis, 360 rays sampled every pixel at the
+     * nearest pixel by default
+     *
+     * @param nangles the number of rays
+     * @param rstep the distance between samples in pixels
+     * @param bilinear true to interpolate the samples
+     */
+    public void setSampling(int nangles, double rstep, boolean bilinear) {
+        this.nangles = nangles;
+        this.rstep = rstep;
+        this.bilinear = bilinear;
+    }
+
     private void getUniformity(ImagePlus simp, Roi sFOV, ResultsTable rt) {
-        Roi lFOV = RoiEnlarger.enlarge(sFOV, -1);//To avoid boundaries
-        float[][] Pixels = simp.getProcessor().getFloatArray();
-        double[] gvector = new double[simp.getWidth()];
-        int rmin = simp.getWidth();
-        FPoint2D center = new FPoint2D(simp.getHeight() / 2, simp.getWidth() / 2);
+        lFOV = RoiEnlarger.enlarge(sFOV, -1);//To avoid boundaries
         simp.setRoi(lFOV);
         ImageStatistics is = simp.getStatistics();
+        rays = new RadialSampler(simp.getWidth(), simp.getHeight(), simp.getHeight() / 2, simp.getWidth() / 2,
+                lFOV, nangles, rstep, bilinear);
+        double[] uniformity = getUniformity(simp.getProcessor().getPixels(), rays, is.mean);
 
+        rt.addValue(Commons.LANGUAGES.getString("MAXIMUM_RING_CONTRAST"), uniformity[0]);
+        rt.addValue(Commons.LANGUAGES.getString("CENTRE_BORDER_CONTRAST"), uniformity[1]);
+
+    }
+
+    /**
+     * Ring contrast along the rays and centre to border contrast of the mean
+     * radial profile
+     *
+     * @param pixels the pixel array, byte[], short[] or float[]
+     * @param rays the rays of the field of view
+     * @param mean the mean in the field of view
+     * @return the maximum ring contrast and the centre to border contrast
+     */
+    static double[] getUniformity(Object pixels, RadialSampler rays, double mean) {
+        int rmin = rays.getMinLength();
+        double[] gvector = new double[rays.getMaxLength()];
+        double[] vector = null;
         double DU = 0;
-        for (int i = 0; i < 360; i++) {
-            int rmax = 0;
-            double angle = 2 * Math.PI * i / 360;
-            int lX = (int) (center.getX());
-            int lY = (int) (center.getY());
-            while (lFOV.contains(lX, lY)) {
-                rmax += 1;
-                lX = (int) (center.getX() + rmax * Math.cos(angle));
-                lY = (int) (center.getY() + rmax * Math.sin(angle));
-            }
-            if (rmax < rmin) {
-                rmin = rmax;
-            }
-            double[] vector = new double[rmax];
+        for (int i = 0; i < rays.getAngles(); i++) {
+            vector = rays.sample(pixels, i, vector);
+            int rmax = rays.getLength(i);
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
             for (int j = 0; j < rmax; j++) {
-                lX = (int) (center.getX() + j * Math.cos(angle));
-                lY = (int) (center.getY() + j * Math.sin(angle));
-                vector[j] = Pixels[lX][lY];
                 gvector[j] += vector[j];
+                min = Math.min(min, vector[j]);
+                max = Math.max(max, vector[j]);
             }
-            double[] temp = Tools.getMinMax(vector);
-            double lmin = MathUtils.Contrast(is.mean, temp[0]);
-            double lmax = MathUtils.Contrast(is.mean, temp[1]);
+            double lmin = MathUtils.Contrast(mean, min);
+            double lmax = MathUtils.Contrast(mean, max);
             DU = Math.max(DU, Math.max(lmin, lmax));
         }
 
-        double[] ngvector = new double[rmin];
-        System.arraycopy(gvector, 0, ngvector, 0, rmin);
         double centre = 0;
         double border = 0;
         for (int i = 0; i < Math.min(5, rmin / 2); i++) {
-            centre += ngvector[i];
-            border += ngvector[rmin - i - 1];
+            centre += gvector[i];
+            border += gvector[rmin - i - 1];
         }
         double IU = MathUtils.Contrast(centre, border);
+        return new double[]{DU, IU};
+    }
 
-        rt.addValue(Commons.LANGUAGES.getString("MAXIMUM_RING_CONTRAST"), DU);
-        rt.addValue(Commons.LANGUAGES.getString("CENTRE_BORDER_CONTRAST"), IU);
+    /**
+     * Ring contrast, centre to border contrast, integral uniformity and noise
+     * of one image in the field of view
+     *
+     * @param pixels the pixel array, byte[], short[] or float[]
+     * @param fov the field of view
+     * @return the four values, the noise as percent of the mean
+     */
+    private double[] getSliceUniformity(Object pixels, FOVMask fov) {
+        byte[] mask = fov.getMask();
+        java.awt.Rectangle r = fov.getBounds();
+        int w = fov.getWidth();
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int y = r.y; y < r.y + r.height; y++) {
+            for (int index = y * w + r.x; index < y * w + r.x + r.width; index++) {
+                if (mask[index] != 0) {
+                    double v = getValue(pixels, index);
+                    sum += v;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+            }
+        }
+        int n = fov.getCount();
+        double mean = sum / n;
+        double sum2 = 0;
+        for (int y = r.y; y < r.y + r.height; y++) {
+            for (int index = y * w + r.x; index < y * w + r.x + r.width; index++) {
+                if (mask[index] != 0) {
+                    double d = getValue(pixels, index) - mean;
+                    sum2 += d * d;
+                }
+            }
+        }
+        double[] rings = getUniformity(pixels, rays, mean);
+        double noise = n > 1 ? 100 * Math.sqrt(sum2 / (n - 1)) / mean : 0;
+        return new double[]{rings[0], rings[1], MathUtils.Contrast(min, max), noise};
+    }
+
+    private static double getValue(Object pixels, int index) {
+        if (pixels instanceof float[]) {
+            return ((float[]) pixels)[index];
+        }
+        if (pixels instanceof short[]) {
+            return ((short[]) pixels)[index] & 0xffff;
+        }
+        return ((byte[]) pixels)[index] & 0xff;
+    }
 
+    private void addSliceValues(ResultsTable rt, double[] values) {
+        rt.addValue(Commons.LANGUAGES.getString("MAXIMUM_RING_CONTRAST"), values[0]);
+        rt.addValue(Commons.LANGUAGES.getString("CENTRE_BORDER_CONTRAST"), values[1]);
+        rt.addValue(Commons.LANGUAGES.getString("INTEGRAL_UNIFORMITY"), values[2]);
+        rt.addValue(Commons.LANGUAGES.getString("NOISE"), values[3]);
     }
 
     /**
@@ -112,12 +195,7 @@ public class Tomographic_Uniformity implements PlugInFilter {
      */
     @Override
     public void run(ImageProcessor ip) {
-        ResultsTable rt = new ResultsTable();
-        rt.incrementCounter();
-        rt.addValue("ROI", "UFOV");
-
         int ns = imp.getStackSize();
-        ImageStack stack = imp.getImageStack();
         int sinit;
         int send;
         if (ns > 1) {
@@ -134,29 +212,8 @@ public class Tomographic_Uniformity implements PlugInFilter {
             sinit = 1;
             send = 1;
         }
-        float[][] ip2mat = new float[imp.getWidth()][imp.getHeight()];
-        for (int z = sinit; z <= send; z++) {
-            ImageProcessor ip2 = stack.getProcessor(z);
-            float[][] pixels = ip2.getFloatArray();
-            for (int i = 0; i < ip2.getWidth(); i++) {
-                for (int j = 0; j < ip2.getHeight(); j++) {
-                    ip2mat[i][j] += pixels[i][j];
-                }
-            }
-        }
-        for (int i = 0; i < stack.getWidth(); i++) {
-            for (int j = 0; j < stack.getHeight(); j++) {
-                ip2mat[i][j] /= send - sinit + 1;
-            }
-        }
-        FloatProcessor ip2 = new FloatProcessor(ip2mat);
-        String lname = imp.getTitle() + ": " + Commons.LANGUAGES.getString("FRAMES") + " " + sinit + "-" + send;
-        ImagePlus imp2 = new ImagePlus(Commons.LANGUAGES.getString("MEAN_IMAGE") + lname, ip2);
-        ImageStatistics is2 = imp2.getStatistics();
-        Roi FOV = Commons.getThreshold(imp2, 0.1 * is2.max, 0.9); // 10% of max value for threshold
-        getUniformity(imp2, FOV, rt);
+        ResultsTable rt = getResults(sinit, send);
         imp2.show();
-        rt.showRowNumbers(true);
         rt.show(Commons.LANGUAGES.getString("TOMOGRAPHIC_UNIFORMITY") + lname);
 
         FileInfo fi = imp.getOriginalFileInfo();
@@ -164,6 +221,59 @@ public class Tomographic_Uniformity implements PlugInFilter {
 
     }
 
+    /**
+     * Computes the uniformity of the mean image of the slice range without
+     * opening any window
+     *
+     * @param sinit The initial slice
+     * @param send The final slice
+     * @return the results table
+     */
+    public ResultsTable getResults(int sinit, int send) {
+        ResultsTable rt = new ResultsTable();
+        rt.incrementCounter();
+        rt.addValue("ROI", "UFOV");
+
+        ImageStack stack = imp.getImageStack();
+        FloatProcessor ip2 = StackReduction.reduce(stack, sinit, send, StackReduction.MEAN);
+        lname = imp.getTitle() + ": " + Commons.LANGUAGES.getString("FRAMES_TO") + " " + sinit + "-" + send;
+        imp2 = new ImagePlus(Commons.LANGUAGES.getString("MEAN_IMAGE") + lname, ip2);
+        ImageStatistics is2 = imp2.getStatistics();
+        Roi FOV = Commons.getThreshold(imp2, 0.1 * is2.max, 0.9); // 10% of max value for threshold
+        getUniformity(imp2, FOV, rt);
+        rt.showRowNumbers(true);
+        if (Method != null && Method.contains("slices")) {
+            addSlices(stack, sinit, send, rt);
+        }
+        return rt;
+    }
+
+    /**
+     * Adds a row for every slice of the range, analysed in parallel with the
+     * field of view and the rays of the mean image, and the integral
+     * uniformity and noise of the mean image to its row
+     */
+    private void addSlices(ImageStack stack, int sinit, int send, ResultsTable rt) {
+        FOVMask fov = new FOVMask(lFOV, stack.getWidth(), stack.getHeight());
+        double[] mean = getSliceUniformity(imp2.getProcessor().getPixels(), fov);
+        rt.addValue(Commons.LANGUAGES.getString("FRAME").trim(), sinit + "-" + send);
+        rt.addValue(Commons.LANGUAGES.getString("INTEGRAL_UNIFORMITY"), mean[2]);
+        rt.addValue(Commons.LANGUAGES.getString("NOISE"), mean[3]);
+        List<double[]> slices = IntStream.rangeClosed(sinit, send).parallel().mapToObj(z -> {
+            Object pixels = stack.getPixels(z);
+            if (pixels instanceof int[]) {
+                pixels = stack.getProcessor(z).convertToFloat().getPixels();
+            }
+            return getSliceUniformity(pixels, fov);
+        }).collect(Collectors.toList());
+        for (int z = sinit; z <= send; z++) {
+            rt.incrementCounter();
+            rt.addValue("ROI", "UFOV");
+            addSliceValues(rt, slices.get(z - sinit));
+            rt.addValue(Commons.LANGUAGES.getString("FRAME").trim(), z);
+        }
+    }
+
     void showAbout() {
         IJ.showMessage(Commons.LANGUAGES.getString("ABOUT_TOMOGRAPHIC_UNIFORMITY"),
                 Commons.LANGUAGES.getString("DESCRIPTION_TOMOGRAPHIC_UNIFORMITY"));
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Center of rotation of a projection stream: every projection added updates
+ * the sine fit normal equations and the mean of the Y centroids, so a
+ * provisional offset is available as soon as three projections arrived and a
+ * bad acquisition can be stopped before the arc is complete.
+ *
+ * The offsets are the ones of C_O_R, the largest residual of the sine fit in
+ * X and the largest deviation from the mean in Y, in pixels.
+ *
+ * @author alex
+ */
+public class CORAccumulator {
+
+    private final double startangle, anglestep;
+    private final double background;
+    private final SineFit sine = new SineFit(1);
+    private double[] angles = new double[128];
+    private double[] cmx = new double[128];
+    private double[] cmy = new double[128];
+    private int n, received;
+    private double meany;
+    private double[] params;
+
+    /**
+     * Creator
+     *
+     * @param startangle the angle of the projection 0 in degrees
+     * @param anglestep the angle between projections in degrees, negative for
+     * clockwise rotation
+     * @param background the value subtracted from the pixels for the
+     * centroids
+     */
+    public CORAccumulator(double startangle, double anglestep, double background) {
+        this.startangle = startangle;
+        this.anglestep = anglestep;
+        this.background = background;
+    }
+
+    /**
+     * Adds the next projection
+     *
+     * @param pixels the pixel array, byte[], short[] or float[]
+     * @param width the image width
+     * @param height the image height
+     * @return the provisional offsets in X and Y
+     */
+    public double[] add(Object pixels, int width, int height) {
+        double[] c = Centroids.getCentroid(pixels, width, height, background);
+        // the first projection of C_O_R is at one step from the start angle
+        received++;
+        double angle = (startangle + received * anglestep) * 2 * Math.PI / 360;
+        return add(angle, c[0], c[1]);
+    }
+
+    /**
+     * Adds the centroid of the next projection
+     *
+     * @param angle the projection angle in radians
+     * @param x the centroid x
+     * @param y the centroid y
+     * @return the provisional offsets in X and Y
+     */
+    public double[] add(double angle, double x, double y) {
+        if (Double.isNaN(x) || Double.isNaN(y)) {
+            return getOffsets(); // an empty projection does not locate the source
+        }
+        if (n == angles.length) {
+            angles = Arrays.copyOf(angles, 2 * n);
+            cmx = Arrays.copyOf(cmx, 2 * n);
+            cmy = Arrays.copyOf(cmy, 2 * n);
+        }
+        angles[n] = angle;
+        cmx[n] = x;
+        cmy[n] = y;
+        n++;
+        meany += (y - meany) / n;
+        sine.add(angle, x);
+        params = sine.getParams();
+        return getOffsets();
+    }
+
+    /**
+     *
+     * @return the number of projections used
+     */
+    public int getN() {
+        return n;
+    }
+
+    /**
+     *
+     * @return the sine fit parameters a, b, c and d, NaN before three
+     * projections
+     */
+    public double[] getParams() {
+        return params == null ? sine.getParams() : params.clone();
+    }
+
+    /**
+     *
+     * @return the offsets in X and Y, NaN before three projections
+     */
+    public double[] getOffsets() {
+        if (params == null || Double.isNaN(params[0])) {
+            return new double[]{Double.NaN, Double.NaN};
+        }
+        double ox = Double.NEGATIVE_INFINITY;
+        double oy = 0;
+        for (int i = 0; i < n; i++) {
+            ox = Math.max(ox, cmx[i] - SineFit.f(params, angles[i]));
+            oy = Math.max(oy, Math.abs(cmy[i] - meany));
+        }
+        return new double[]{ox, oy};
+    }
+
+}
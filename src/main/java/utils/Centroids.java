@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import ij.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Intensity weighted centroids read in one pass over the pixel arrays of 8
+ * bit, 16 bit and float images, without histograms or conversions.
+ *
+ * Pixels not above the background are ignored and the background is
+ * subtracted from the rest, with background 0 the centroid is the
+ * xCenterOfMass and yCenterOfMass of ImageStatistics: pixel units, the center
+ * of the first pixel at 0.5.
+ *
+ * @author alex
+ */
+public class Centroids {
+
+    /**
+     *
+     * @param pixels the pixel array, byte[], short[] or float[]
+     * @param width the image width
+     * @param height the image height
+     * @param background the value subtracted from the pixels
+     * @return the centroid x, y and the sum of the weights, NaN centroid if
+     * no pixel is above the background
+     */
+    public static double[] getCentroid(Object pixels, int width, int height, double background) {
+        double sum = 0, xsum = 0, ysum = 0;
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int y = 0, i = 0; y < height; y++) {
+                double rowsum = 0, rowxsum = 0;
+                for (int x = 0; x < width; x++, i++) {
+                    double v = (p[i] & 0xff) - background;
+                    if (v > 0) {
+                        rowsum += v;
+                        rowxsum += x * v;
+                    }
+                }
+                sum += rowsum;
+                xsum += rowxsum;
+                ysum += y * rowsum;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int y = 0, i = 0; y < height; y++) {
+                double rowsum = 0, rowxsum = 0;
+                for (int x = 0; x < width; x++, i++) {
+                    double v = (p[i] & 0xffff) - background;
+                    if (v > 0) {
+                        rowsum += v;
+                        rowxsum += x * v;
+                    }
+                }
+                sum += rowsum;
+                xsum += rowxsum;
+                ysum += y * rowsum;
+            }
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            for (int y = 0, i = 0; y < height; y++) {
+                double rowsum = 0, rowxsum = 0;
+                for (int x = 0; x < width; x++, i++) {
+                    double v = p[i] - background;
+                    if (v > 0) {
+                        rowsum += v;
+                        rowxsum += x * v;
+                    }
+                }
+                sum += rowsum;
+                xsum += rowxsum;
+                ysum += y * rowsum;
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported pixel array: " + pixels);
+        }
+        if (!(sum > 0)) {
+            return new double[]{Double.NaN, Double.NaN, 0};
+        }
+        return new double[]{xsum / sum + 0.5, ysum / sum + 0.5, sum};
+    }
+
+    /**
+     * The centroid of a stack slice, RGB slices are converted to float
+     *
+     * @param stack the stack
+     * @param n the slice number (1 to size)
+     * @param background the value subtracted from the pixels
+     * @return the centroid x, y and the sum of the weights
+     */
+    public static double[] getCentroid(ImageStack stack, int n, double background) {
+        Object pixels = stack.getPixels(n);
+        if (pixels instanceof int[]) {
+            pixels = stack.getProcessor(n).convertToFloat().getPixels();
+        }
+        return getCentroid(pixels, stack.getWidth(), stack.getHeight(), background);
+    }
+
+    /**
+     * The centroids of all the slices of a stack, computed in parallel
+     *
+     * @param stack the stack
+     * @param background the value subtracted from the pixels
+     * @return x, y and the sum of the weights per slice (0 based)
+     */
+    public static double[][] getCentroids(ImageStack stack, double background) {
+        return IntStream.rangeClosed(1, stack.getSize()).parallel()
+                .mapToObj(z -> getCentroid(stack, z, background)).toArray(double[][]::new);
+    }
+
+    /**
+     * The connected components (8 neighbours) of the pixels above the
+     * threshold, labelled in two raster passes with a union-find of the
+     * provisional labels
+     *
+     * @param pixels the pixel array, byte[], short[] or float[]
+     * @param width the image width
+     * @param height the image height
+     * @param background the value subtracted from the pixels for the weights
+     * @param threshold the pixels above it are foreground
+     * @return x, y, the sum of the weights and the pixel count of each
+     * component, largest sum first
+     */
+    public static List<double[]> getComponents(Object pixels, int width, int height, double background, double threshold) {
+        int[] labels = new int[width * height];
+        int[] parent = new int[64];
+        int nlabels = 0;
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                if (!(Uniformity.getValue(pixels, i) > threshold)) {
+                    continue;
+                }
+                int label = 0;
+                // the neighbours already visited: left, upper left, up, upper right
+                for (int k = 0; k < 4; k++) {
+                    int nx = k == 0 ? x - 1 : x + k - 2;
+                    int ny = k == 0 ? y : y - 1;
+                    if (nx < 0 || ny < 0 || nx >= width) {
+                        continue;
+                    }
+                    int neighbour = labels[ny * width + nx];
+                    if (neighbour == 0) {
+                        continue;
+                    }
+                    neighbour = find(parent, neighbour);
+                    if (label == 0) {
+                        label = neighbour;
+                    } else if (neighbour != label) {
+                        parent[Math.max(label, neighbour)] = Math.min(label, neighbour);
+                        label = Math.min(label, neighbour);
+                    }
+                }
+                if (label == 0) {
+                    nlabels++;
+                    if (nlabels == parent.length) {
+                        parent = Arrays.copyOf(parent, 2 * nlabels);
+                    }
+                    parent[nlabels] = nlabels;
+                    label = nlabels;
+                }
+                labels[i] = label;
+            }
+        }
+        int[] index = new int[nlabels + 1];
+        int ncomponents = 0;
+        for (int l = 1; l <= nlabels; l++) {
+            int root = find(parent, l);
+            index[l] = root == l ? ncomponents++ : index[root];
+        }
+        double[][] sums = new double[ncomponents][4];
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                if (labels[i] == 0) {
+                    continue;
+                }
+                double[] c = sums[index[find(parent, labels[i])]];
+                double v = Math.max(0, Uniformity.getValue(pixels, i) - background);
+                c[0] += x * v;
+                c[1] += y * v;
+                c[2] += v;
+                c[3]++;
+            }
+        }
+        List<double[]> result = new ArrayList<>();
+        for (double[] c : sums) {
+            if (c[2] > 0) {
+                result.add(new double[]{c[0] / c[2] + 0.5, c[1] / c[2] + 0.5, c[2], c[3]});
+            }
+        }
+        result.sort((c1, c2) -> Double.compare(c2[2], c1[2]));
+        return result;
+    }
+
+    private static int find(int[] parent, int label) {
+        while (parent[label] != label) {
+            parent[label] = parent[parent[label]];
+            label = parent[label];
+        }
+        return label;
+    }
+
+    /**
+     * The connected components of a stack slice above a fraction of its
+     * maximum, RGB slices are converted to float
+     *
+     * @param stack the stack
+     * @param n the slice number (1 to size)
+     * @param background the value subtracted from the pixels
+     * @param fraction the threshold as fraction of the maximum over the
+     * background
+     * @return x, y, the sum of the weights and the pixel count of each
+     * component, largest sum first
+     */
+    public static List<double[]> getComponents(ImageStack stack, int n, double background, double fraction) {
+        Object pixels = stack.getPixels(n);
+        if (pixels instanceof int[]) {
+            pixels = stack.getProcessor(n).convertToFloat().getPixels();
+        }
+        int npixels = stack.getWidth() * stack.getHeight();
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < npixels; i++) {
+            max = Math.max(max, Uniformity.getValue(pixels, i));
+        }
+        double threshold = background + fraction * (max - background);
+        return getComponents(pixels, stack.getWidth(), stack.getHeight(), background, threshold);
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+/**
+ * Cholesky solution of the small symmetric positive definite systems of the
+ * normal equations of the fitters. Nothing is allocated, the caller keeps the
+ * matrix and the vectors.
+ *
+ * @author alex
+ */
+public class Cholesky {
+
+    /**
+     * Solves a * x = b
+     *
+     * @param a the matrix, overwritten with its factor
+     * @param b the right hand side
+     * @param x the solution
+     * @param n the size of the system
+     * @return false if a is not positive definite
+     */
+    public static boolean solve(double[][] a, double[] b, double[] x, int n) {
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j <= i; j++) {
+                double s = a[i][j];
+                for (int k = 0; k < j; k++) {
+                    s -= a[i][k] * a[j][k];
+                }
+                if (i == j) {
+                    if (!(s > 0)) {
+                        return false;
+                    }
+                    a[i][i] = Math.sqrt(s);
+                } else {
+                    a[i][j] = s / a[j][j];
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            double s = b[i];
+            for (int k = 0; k < i; k++) {
+                s -= a[i][k] * x[k];
+            }
+            x[i] = s / a[i][i];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double s = x[i];
+            for (int k = i + 1; k < n; k++) {
+                s -= a[k][i] * x[k];
+            }
+            x[i] = s / a[i][i];
+        }
+        return true;
+    }
+
+}
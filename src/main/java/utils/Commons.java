@@ -26,6 +26,7 @@ import static ij.util.Tools.*;
 import java.awt.*;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.function.IntPredicate;
 import java.util.stream.Stream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -88,10 +89,13 @@ public class Commons {
     }
 
     /**
+     * Scans the header for a single key and shows an error dialog if it is
+     * missing, use DicomHeader to read several keys or to avoid dialogs.
      *
      * @param Info the result of ImagePlus.getInfoProperty();
      * @param key the desired key to be returned
      * @return the key value as string
+     * @see DicomHeader
      */
     public static String getStringValueFromInfo(String Info, String key) {
         int i = Info.indexOf(key);
@@ -170,22 +174,104 @@ public class Commons {
      * @return The FOV for the specified cutoff
      */
     public static Roi getThreshold(ImagePlus imp, double min, double max) {
-        ImageProcessor ip2 = imp.getProcessor().duplicate();
-        //ImagePlus imp2 = new ImagePlus("Thresholded " + imp.getTitle(), ip2);
-        ip2.setThreshold(min, ip2.getStatistics().max, ImageProcessor.BLACK_AND_WHITE_LUT);
-        ThresholdToSelection ts = new ThresholdToSelection();
-        Roi roi = ts.convert(ip2);
-        //ConvexHull ch = new ConvexHull(points);
-        //points = ch.getConvexHull();
-        PolygonRoi CHroi;
-        if (IJ.getVersion().contains("1.51")) {
-            CHroi = new PolygonRoi(roi.getContainedFloatPoints(), Roi.POLYGON);
-        } else {
-            CHroi = new PolygonRoi(getContainedFloatPoints(roi), Roi.POLYGON);
-        }
+        return shrinkFOV(getThresholdHull(imp, min), max);
+    }
+
+    /**
+     * The thresholded pixels are not traced, their hull is the one of getHull.
+     * As in ImageProcessor.setThreshold, the threshold of 16 bit images is
+     * rounded.
+     *
+     * @param imp The active image
+     * @param min The percentage of the max to be considered for the boundary
+     * polygon
+     * @return The convex hull of the thresholded image, it can be shrunk to
+     * several FOVs with shrinkFOV, null if no pixel is above min
+     */
+    public static PolygonRoi getThresholdHull(ImagePlus imp, double min) {
+        ImageProcessor ip = imp.getProcessor();
+        Object pixels = Uniformity.getPixels(ip);
+        double threshold = pixels instanceof short[] ? Math.round(min) : min;
+        return getHull(ip.getWidth(), new Rectangle(0, 0, ip.getWidth(), ip.getHeight()),
+                i -> Uniformity.getValue(pixels, i) >= threshold);
+    }
 
-        CHroi = new PolygonRoi(CHroi.getConvexHull(), Roi.POLYGON);
+    /**
+     * Only the first and last selected pixel of every row and column can lie
+     * on the convex hull of the selection, so only those go through the hull,
+     * in the row order of the traced selection. The vertices, collinear ones
+     * included, are the ones of the hull of the traced selection, and so are
+     * the pixels of its mask.
+     *
+     * @param width The image width
+     * @param bounds The part of the image holding the selected pixels
+     * @param selected Tells if the pixel of an index (y * width + x) is
+     * selected
+     * @return The convex hull of the selected pixels, null if there is none
+     */
+    public static PolygonRoi getHull(int width, Rectangle bounds, IntPredicate selected) {
+        int x0 = bounds.x;
+        int y0 = bounds.y;
+        int x1 = bounds.x + bounds.width;
+        int y1 = bounds.y + bounds.height;
+        int[] xl = new int[bounds.height];
+        int[] xr = new int[bounds.height];
+        for (int y = y0; y < y1; y++) {
+            int offset = y * width;
+            int r = y - y0;
+            xl[r] = x0;
+            while (xl[r] < x1 && !selected.test(offset + xl[r])) {
+                xl[r]++;
+            }
+            if (xl[r] == x1) {
+                continue;
+            }
+            xr[r] = x1 - 1;
+            while (!selected.test(offset + xr[r])) {
+                xr[r]--;
+            }
+        }
+        int[] top = new int[bounds.width];
+        int[] bottom = new int[bounds.width];
+        for (int x = x0; x < x1; x++) {
+            int c = x - x0;
+            top[c] = y0;
+            while (top[c] < y1 && !selected.test(top[c] * width + x)) {
+                top[c]++;
+            }
+            if (top[c] == y1) {
+                bottom[c] = -1;
+                continue;
+            }
+            bottom[c] = y1 - 1;
+            while (!selected.test(bottom[c] * width + x)) {
+                bottom[c]--;
+            }
+        }
+        FloatPolygon points = new FloatPolygon();
+        for (int y = y0; y < y1; y++) {
+            int r = y - y0;
+            for (int x = xl[r]; x < x1 && x <= xr[r]; x++) {
+                if (x == xl[r] || x == xr[r] || top[x - x0] == y || bottom[x - x0] == y) {
+                    points.addPoint(x, y);
+                }
+            }
+        }
+        if (points.npoints == 0) {
+            return null;
+        }
+        return new PolygonRoi(new PolygonRoi(points, Roi.POLYGON).getConvexHull(), Roi.POLYGON);
+    }
 
+    /**
+     * The FOV is shrunk with RoiEnlarger, its distance map decides the pixels
+     * of the rim, so they are the ones of the clinical results.
+     *
+     * @param CHroi The convex hull from getThresholdHull
+     * @param max The cuttof to shrink boundary polygon
+     * @return The FOV for the specified cutoff
+     */
+    public static Roi shrinkFOV(Roi CHroi, double max) {
         //the final roi shall be a fraction of current roi
         double theight = CHroi.getBounds().height;
         double twidth = CHroi.getBounds().width;
@@ -16,107 +16,230 @@
 package utils;
 
 import ij.gui.*;
+import ij.process.FloatPolygon;
 import java.util.Arrays;
 
 /*
  * Computing the convex hull of a set of points using
- * the Graham scan algorithm.
+ * Andrew's monotone chain algorithm over primitive coordinate arrays.
+ * The static methods keep no state, so several hulls can be computed at
+ * the same time.
  * Application: find the two points with biggest euclidean distance between
  * them given a set of points.
- * http://en.wikipedia.org/wiki/Graham_scan
+ * http://en.wikibooks.org/wiki/Algorithm_Implementation/Geometry/Convex_hull/Monotone_chain
  */
 public class ConvexHull {
 
-    private final int n;
-    private FPoint2D[] points;
+    private final float[] xs;
+    private final float[] ys;
 
     /**
      * Creator
      * @param points the points around which we create the convex hull
      */
     public ConvexHull(FPoint2D[] points) {
-        this.n = points.length;
-        this.points = points;
+        this.xs = FPoint2D.getXPoints(points);
+        this.ys = FPoint2D.getYPoints(points);
     }
 
-    private FPoint2D getPointWithLowestYCoord() {
-        FPoint2D lowest_point = points[0];
-        for (FPoint2D p : points) {
-            if (p.getY() < lowest_point.getY()) {
-                lowest_point = p;
-            } else if (p.getY() < lowest_point.getY()) {
-                if (p.getX() > lowest_point.getX()) {
-                    lowest_point = p;
-                }
-            }
+    /**
+     *
+     * @return the convex hull as an array of points
+     */
+    public FPoint2D[] getConvexHull() {
+        FloatPolygon hull = getConvexHull(xs, ys, xs.length);
+        FPoint2D[] convex_hull_points = new FPoint2D[hull.npoints];
+        for (int i = 0; i < hull.npoints; i++) {
+            convex_hull_points[i] = new FPoint2D(hull.xpoints[i], hull.ypoints[i]);
         }
-        return lowest_point;
+        return convex_hull_points;
+    }
+    
+    /**
+     *
+     * @return the convex hull as a Polygon Roi
+     */
+    public PolygonRoi getConvexHullP() {
+        return new PolygonRoi(getConvexHull(xs, ys, xs.length), Roi.POLYGON);
     }
 
-    private int computeConvexHull() {
-        if (n <= 2) {
-            return n;
+    /**
+     *
+     * @param x the x coordinates
+     * @param y the y coordinates
+     * @param n the number of points
+     * @return the convex hull, collinear points removed
+     */
+    public static FloatPolygon getConvexHull(double[] x, double[] y, int n) {
+        int[] index = sort(x, y, n);
+        double[] sx = new double[n];
+        double[] sy = new double[n];
+        for (int i = 0; i < n; i++) {
+            sx[i] = x[index[i]];
+            sy[i] = y[index[i]];
         }
-        FPoint2D point_with_lowest_y_coord = getPointWithLowestYCoord();
-        for (FPoint2D p : points) {
-            p.setComparatorPoint(point_with_lowest_y_coord);
+        return chain(sx, sy, n);
+    }
+
+    /**
+     *
+     * @param x the x coordinates
+     * @param y the y coordinates
+     * @param n the number of points
+     * @return the convex hull, collinear points removed
+     */
+    public static FloatPolygon getConvexHull(float[] x, float[] y, int n) {
+        double[] dx = new double[n];
+        double[] dy = new double[n];
+        for (int i = 0; i < n; i++) {
+            dx[i] = x[i];
+            dy[i] = y[i];
         }
-        Arrays.sort(points);
-        FPoint2D[] mod_points = new FPoint2D[n + 1];
-        System.arraycopy(points, 0, mod_points, 0, n);
-        mod_points[n] = points[0];
-        points = mod_points;
-        int convex_hull_index = 1;
-        int i = 2;
-        while (i <= n) {
-            // decide if an angle is counterclockwise or not
-            // if it is not counterclockwise, do not include it in the
-            // convex hull
-            while (!FPoint2D.isCounterclockwise(points[convex_hull_index - 1],
-                    points[convex_hull_index], points[i])) {
-                if (convex_hull_index > 1) {
-                    convex_hull_index--;
-                } else if (i == n) // all points are collinear
-                {
-                    break;
-                } else {
-                    i++;
+        return getConvexHull(dx, dy, n);
+    }
+
+    /**
+     * Points on a pixel grid: when the points span few columns only the top
+     * and bottom point of each column are kept, without sorting, otherwise
+     * the coordinates are sorted packed in a long.
+     *
+     * @param x the x coordinates
+     * @param y the y coordinates
+     * @param n the number of points
+     * @return the convex hull, collinear points removed
+     */
+    public static FloatPolygon getConvexHull(int[] x, int[] y, int n) {
+        if (n == 0) {
+            return new FloatPolygon();
+        }
+        int xmin = x[0];
+        int xmax = x[0];
+        for (int i = 1; i < n; i++) {
+            xmin = Math.min(xmin, x[i]);
+            xmax = Math.max(xmax, x[i]);
+        }
+        double[] sx;
+        double[] sy;
+        int m = 0;
+        long range = (long) xmax - xmin + 1;
+        if (range <= 4L * n) {
+            int[] top = new int[(int) range];
+            int[] bottom = new int[(int) range];
+            Arrays.fill(top, Integer.MAX_VALUE);
+            Arrays.fill(bottom, Integer.MIN_VALUE);
+            for (int i = 0; i < n; i++) {
+                int c = x[i] - xmin;
+                top[c] = Math.min(top[c], y[i]);
+                bottom[c] = Math.max(bottom[c], y[i]);
+            }
+            sx = new double[(int) Math.min(2 * range, 2L * n)];
+            sy = new double[sx.length];
+            for (int c = 0; c < range; c++) {
+                if (top[c] == Integer.MAX_VALUE) {
+                    continue;
+                }
+                sx[m] = xmin + c;
+                sy[m++] = top[c];
+                if (bottom[c] != top[c]) {
+                    sx[m] = xmin + c;
+                    sy[m++] = bottom[c];
                 }
             }
-            convex_hull_index++;
-            swap(points, convex_hull_index, i);
-            i++;
+        } else {
+            long[] keys = new long[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = ((long) x[i] << 32) | (y[i] - (long) Integer.MIN_VALUE);
+            }
+            Arrays.sort(keys);
+            sx = new double[n];
+            sy = new double[n];
+            for (int i = 0; i < n; i++) {
+                sx[m] = keys[i] >> 32;
+                sy[m++] = (keys[i] & 0xffffffffL) + (long) Integer.MIN_VALUE;
+            }
         }
-        return convex_hull_index;
+        return chain(sx, sy, m);
     }
 
     /**
      *
-     * @return the convex hull as an array of points
+     * @param x the x coordinates
+     * @param y the y coordinates
+     * @param n the number of points
+     * @return the point indices sorted by x and then by y
      */
-    public FPoint2D[] getConvexHull() {
-        int convex_hull_index = computeConvexHull();
-        FPoint2D[] convex_hull_points = new FPoint2D[convex_hull_index];
-        System.arraycopy(points, 0, convex_hull_points, 0, convex_hull_index);
-        return convex_hull_points;
+    private static int[] sort(double[] x, double[] y, int n) {
+        int[] index = new int[n];
+        for (int i = 0; i < n; i++) {
+            index[i] = i;
+        }
+        // bottom up merge sort, no boxing
+        int[] tmp = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    int a = index[i];
+                    int b = index[j];
+                    if (x[b] < x[a] || (x[b] == x[a] && y[b] < y[a])) {
+                        tmp[k++] = index[j++];
+                    } else {
+                        tmp[k++] = index[i++];
+                    }
+                }
+                while (i < mid) {
+                    tmp[k++] = index[i++];
+                }
+                while (j < hi) {
+                    tmp[k++] = index[j++];
+                }
+                System.arraycopy(tmp, lo, index, lo, hi - lo);
+            }
+        }
+        return index;
     }
-    
+
     /**
      *
-     * @return the convex hull as a Polygon Roi
+     * @param x the x coordinates sorted by x and then by y
+     * @param y the y coordinates
+     * @param n the number of points
+     * @return the lower and upper chains joined
      */
-    public PolygonRoi getConvexHullP() {
-        FPoint2D[] convex_hull_points = getConvexHull();
-        return new PolygonRoi(FPoint2D.getXPoints(convex_hull_points), FPoint2D.getYPoints(convex_hull_points), Roi.POLYGON);
+    private static FloatPolygon chain(double[] x, double[] y, int n) {
+        FloatPolygon result = new FloatPolygon();
+        if (n < 3) {
+            for (int i = 0; i < n; i++) {
+                result.addPoint(x[i], y[i]);
+            }
+            return result;
+        }
+        int[] hull = new int[2 * n];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            while (k >= 2 && cross(x, y, hull[k - 2], hull[k - 1], i) <= 0) {
+                k--;
+            }
+            hull[k++] = i;
+        }
+        for (int i = n - 2, t = k + 1; i >= 0; i--) {
+            while (k >= t && cross(x, y, hull[k - 2], hull[k - 1], i) <= 0) {
+                k--;
+            }
+            hull[k++] = i;
+        }
+        for (int i = 0; i < k - 1; i++) {
+            result.addPoint(x[hull[i]], y[hull[i]]);
+        }
+        return result;
     }
 
-    private void swap(FPoint2D[] points, int index1, int index2) {
-        assert (index1 < points.length);
-        assert (index2 < points.length);
-
-        FPoint2D aux = points[index1];
-        points[index1] = points[index2];
-        points[index2] = aux;
+    private static double cross(double[] x, double[] y, int o, int a, int b) {
+        return (x[a] - x[o]) * (y[b] - y[o]) - (y[a] - y[o]) * (x[b] - x[o]);
     }
 
 }
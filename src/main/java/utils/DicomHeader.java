@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import ij.*;
+import static ij.util.Tools.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The header of an image (ImagePlus.getInfoProperty()) parsed once into a
+ * key to value map. Keys can be DICOM tags ("0018,1143") or names ("Scan
+ * Arc", Bio-Formats metadata keys), numeric values are parsed on first use
+ * and cached.
+ *
+ * The getters never show dialogs: a missing key gives null or NaN, so they
+ * can be used in batch runs, interactive plugins can still warn with
+ * IJ.error.
+ *
+ * @author alex
+ */
+public class DicomHeader {
+
+    private static final String PROPERTY = "NMQC.DicomHeader";
+
+    private final String Info;
+    private final Map<String, String> byTag = new HashMap<>();
+    private final Map<String, String> byName = new HashMap<>();
+    private final Map<String, Double> numbers = new ConcurrentHashMap<>();
+
+    /**
+     * Creator
+     *
+     * @param Info the result of ImagePlus.getInfoProperty();
+     */
+    public DicomHeader(String Info) {
+        this.Info = Info == null ? "" : Info;
+        for (String line : this.Info.split("\n")) {
+            parseLine(line);
+        }
+    }
+
+    private void parseLine(String line) {
+        int start = 0;
+        // sequence items are indented with '>'
+        while (start < line.length() && (line.charAt(start) == '>' || line.charAt(start) == ' ')) {
+            start++;
+        }
+        String sep = ": ";
+        int i = line.indexOf(sep, start);// standard 'key: value' pair?
+        if (i < 0) {
+            sep = " = ";
+            i = line.indexOf(sep, start);// Bio-Formats metadata?
+            if (i < 0) {
+                return;
+            }
+        }
+        String key = line.substring(start, i).trim();
+        String value = line.substring(i + sep.length()).trim();
+        if (isTag(key, 0)) {
+            byTag.putIfAbsent(key.substring(0, 9).toUpperCase(Locale.ROOT), value);
+            key = key.substring(9).trim();
+        }
+        if (!key.isEmpty()) {
+            byName.putIfAbsent(key, value);
+        }
+    }
+
+    private static boolean isTag(String s, int start) {
+        if (s.length() < start + 9 || s.charAt(start + 4) != ',') {
+            return false;
+        }
+        for (int k = start; k < start + 9; k++) {
+            if (k != start + 4 && Character.digit(s.charAt(k), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The header of the image, parsed only the first time it is requested
+     * for the image or when its info property has changed.
+     *
+     * @param imp the image
+     * @return the header index
+     */
+    public static DicomHeader getHeader(ImagePlus imp) {
+        String Info = imp.getInfoProperty();
+        Object cached = imp.getProperty(PROPERTY);
+        if (cached instanceof DicomHeader && ((DicomHeader) cached).Info == (Info == null ? "" : Info)) {
+            return (DicomHeader) cached;
+        }
+        DicomHeader result = new DicomHeader(Info);
+        imp.setProperty(PROPERTY, result);
+        return result;
+    }
+
+    /**
+     *
+     * @param key a DICOM tag or a key name
+     * @return true if the header has a value for the key
+     */
+    public boolean contains(String key) {
+        return getString(key) != null;
+    }
+
+    /**
+     *
+     * @param key a DICOM tag ("0018,1143") or a key name ("Scan Arc")
+     * @return the value as string, null if the key is not in the header
+     */
+    public String getString(String key) {
+        if (isTag(key, 0) && key.length() == 9) {
+            String value = byTag.get(key.toUpperCase(Locale.ROOT));
+            if (value != null) {
+                return value;
+            }
+        }
+        return byName.get(key);
+    }
+
+    /**
+     *
+     * @param key a DICOM tag or a key name
+     * @param defaultValue the value returned if the key is not in the header
+     * @return the value as string
+     */
+    public String getString(String key, String defaultValue) {
+        String value = getString(key);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     *
+     * @param key a DICOM tag or a key name
+     * @return the value as number, NaN if the key is not in the header or it
+     * is not a number
+     */
+    public double getNumber(String key) {
+        Double value = numbers.get(key);
+        if (value == null) {
+            String s = getString(key);
+            value = s == null ? Double.NaN : parseDouble(s);
+            numbers.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     *
+     * @param key a DICOM tag or a key name
+     * @param defaultValue the value returned if the key is not in the header
+     * or it is not a number
+     * @return the value as number
+     */
+    public double getNumber(String key, double defaultValue) {
+        double value = getNumber(key);
+        return Double.isNaN(value) ? defaultValue : value;
+    }
+
+    /**
+     *
+     * @param key a DICOM tag or a key name
+     * @param defaultValue the value returned if the key is not in the header
+     * or it is not a number
+     * @return the value as integer
+     */
+    public int getInt(String key, int defaultValue) {
+        double value = getNumber(key);
+        return Double.isNaN(value) ? defaultValue : (int) Math.round(value);
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In place radix 2 complex FFT of power of two sizes. The bit reversal
+ * permutation and the twiddle factors of every size are computed once and
+ * kept, so the images of the same size analysed afterwards (every
+ * acquisition of a phantom on the same camera) only run the butterflies.
+ *
+ * The transform is the forward one, exp(-2 pi i k x / n), not normalized.
+ * A plan holds no working arrays, it can be shared between threads.
+ *
+ * @author alex
+ */
+public class FFT {
+
+    private static final Map<Integer, FFT> PLANS = new ConcurrentHashMap<>();
+
+    private final int n;
+    private final int[] reverse;
+    private final double[] cos, sin;
+
+    private FFT(int n) {
+        this.n = n;
+        int bits = Integer.numberOfTrailingZeros(n);
+        reverse = new int[n];
+        for (int i = 0; i < n; i++) {
+            reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new double[n / 2];
+        sin = new double[n / 2];
+        for (int k = 0; k < n / 2; k++) {
+            double angle = -2 * Math.PI * k / n;
+            cos[k] = Math.cos(angle);
+            sin[k] = Math.sin(angle);
+        }
+    }
+
+    /**
+     *
+     * @param n the transform size, a power of two
+     * @return the plan of that size, shared by all the callers
+     */
+    public static FFT getPlan(int n) {
+        if (n < 1 || Integer.bitCount(n) != 1) {
+            throw new IllegalArgumentException("Not a power of two: " + n);
+        }
+        return PLANS.computeIfAbsent(n, FFT::new);
+    }
+
+    /**
+     *
+     * @param n a length
+     * @return the smallest power of two not below n
+     */
+    public static int getSize(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     *
+     * @return the transform size
+     */
+    public int getN() {
+        return n;
+    }
+
+    /**
+     * Transforms a sequence of n values
+     *
+     * @param re the real parts
+     * @param im the imaginary parts
+     */
+    public void transform(double[] re, double[] im) {
+        transform(re, im, 0, 1);
+    }
+
+    /**
+     * Transforms an n x n image, the rows and then the columns
+     *
+     * @param re the real parts, row by row
+     * @param im the imaginary parts, row by row
+     */
+    public void transform2D(double[] re, double[] im) {
+        if (re.length < n * n || im.length < n * n) {
+            throw new IllegalArgumentException("Arrays shorter than " + n + " x " + n);
+        }
+        for (int y = 0; y < n; y++) {
+            transform(re, im, y * n, 1);
+        }
+        for (int x = 0; x < n; x++) {
+            transform(re, im, x, n);
+        }
+    }
+
+    private void transform(double[] re, double[] im, int offset, int stride) {
+        for (int i = 0; i < n; i++) {
+            int j = reverse[i];
+            if (j > i) {
+                int a = offset + i * stride;
+                int b = offset + j * stride;
+                double t = re[a];
+                re[a] = re[b];
+                re[b] = t;
+                t = im[a];
+                im[a] = im[b];
+                im[b] = t;
+            }
+        }
+        for (int size = 2; size <= n; size <<= 1) {
+            int half = size / 2;
+            int step = n / size;
+            for (int start = 0; start < n; start += size) {
+                for (int k = 0; k < half; k++) {
+                    int a = offset + (start + k) * stride;
+                    int b = a + half * stride;
+                    double c = cos[k * step];
+                    double s = sin[k * step];
+                    double tre = re[b] * c - im[b] * s;
+                    double tim = re[b] * s + im[b] * c;
+                    re[b] = re[a] - tre;
+                    im[b] = im[a] - tim;
+                    re[a] += tre;
+                    im[a] += tim;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import ij.gui.*;
+import ij.process.*;
+import java.awt.Rectangle;
+
+/**
+ * A field of view rasterised once into a byte mask of the same size as the
+ * image, so the analysis loops can test pixel membership with an array read
+ * instead of a polygon contains.
+ *
+ * @author alex
+ */
+public class FOVMask {
+
+    private final int width;
+    private final int height;
+    private final byte[] mask;
+    private int xmin, ymin, xmax, ymax;
+    private int count;
+
+    /**
+     * Creator
+     *
+     * @param roi the field of view
+     * @param width the image width
+     * @param height the image height
+     */
+    public FOVMask(Roi roi, int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.mask = new byte[width * height];
+        this.xmin = width;
+        this.ymin = height;
+        this.xmax = -1;
+        this.ymax = -1;
+        Rectangle bounds = roi.getBounds();
+        ImageProcessor rmask = roi.getMask();
+        byte[] rpixels = rmask == null ? null : (byte[]) rmask.getPixels();
+        int x0 = Math.max(0, bounds.x);
+        int y0 = Math.max(0, bounds.y);
+        int x1 = Math.min(width, bounds.x + bounds.width);
+        int y1 = Math.min(height, bounds.y + bounds.height);
+        for (int y = y0; y < y1; y++) {
+            int moffset = (y - bounds.y) * bounds.width - bounds.x;
+            int offset = y * width;
+            for (int x = x0; x < x1; x++) {
+                if (rpixels == null || rpixels[moffset + x] != 0) {
+                    mask[offset + x] = 1;
+                    add(x, y);
+                }
+            }
+        }
+    }
+
+    private void add(int x, int y) {
+        count++;
+        if (x < xmin) {
+            xmin = x;
+        }
+        if (x > xmax) {
+            xmax = x;
+        }
+        if (y < ymin) {
+            ymin = y;
+        }
+        if (y > ymax) {
+            ymax = y;
+        }
+    }
+
+    /**
+     *
+     * @param x x position
+     * @param y y position
+     * @return true if the pixel is inside the field of view
+     */
+    public boolean contains(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height && mask[y * width + x] != 0;
+    }
+
+    /**
+     *
+     * @param index the pixel index in the image array (y * width + x)
+     * @return true if the pixel is inside the field of view
+     */
+    public boolean contains(int index) {
+        return mask[index] != 0;
+    }
+
+    /**
+     *
+     * @return the raw mask, one byte per pixel, 1 inside and 0 outside
+     */
+    public byte[] getMask() {
+        return mask;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     *
+     * @return the number of pixels inside the field of view
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     *
+     * @return the bounding box of the pixels inside the field of view
+     */
+    public Rectangle getBounds() {
+        return count == 0 ? new Rectangle() : new Rectangle(xmin, ymin, xmax - xmin + 1, ymax - ymin + 1);
+    }
+
+}
@@ -27,21 +27,31 @@ import java.util.*;
  */
 public class Fitter {
 
-/**
+    private static final ThreadLocal<LinearRegression> LINEAR = ThreadLocal.withInitial(LinearRegression::new);
+
+    /**
+     * Closed form least squares line, the plot is drawn with a CurveFitter
      *
      * @param xi array with x values
      * @param yi array with y values
      * @param showplot boolean to show the plot
-     * @return an array containing the parameters of the fit
+     * @return an array containing the parameters of the fit (intercept, slope
+     * and sum of squared residuals, as CurveFitter)
      */
     public static double[] LinearFit(double[] xi, double[] yi, boolean showplot) {
-        CurveFitter cf = new CurveFitter(xi, yi);
-        cf.setStatusAndEsc("Optimization: Iteration ", true);
-        cf.doFit(CurveFitter.STRAIGHT_LINE, false);
+        LinearRegression lr = LINEAR.get();
+        lr.clear();
+        lr.add(xi, yi, xi.length);
         if (showplot) {
-            Plotter.plot(cf, false);
+            plotLinearFit(xi, yi);
         }
-        return cf.getParams();
+        return new double[]{lr.getIntercept(), lr.getSlope(), lr.getSumResidualsSqr()};
+    }
+
+    private static void plotLinearFit(double[] xi, double[] yi) {
+        CurveFitter cf = new CurveFitter(xi, yi);
+        cf.doFit(CurveFitter.STRAIGHT_LINE, false);
+        Plotter.plot(cf, false);
     }
 
     /**
@@ -63,19 +73,24 @@ public class Fitter {
      * @return an array containing the residuals of the fit
      */
     public static double[] getResidualsinLinearFit(double[] xi, double[] yi, boolean showplot) {
-        CurveFitter cf = new CurveFitter(xi, yi);
-        cf.setStatusAndEsc("Optimization: Iteration ", true);
-        cf.doFit(CurveFitter.STRAIGHT_LINE, false);
+        LinearRegression lr = LINEAR.get();
+        lr.clear();
+        lr.add(xi, yi, xi.length);
         if (showplot) {
-            Plotter.plot(cf, false);
+            plotLinearFit(xi, yi);
         }
-        return cf.getResiduals();
+        return lr.getResiduals(xi, yi, xi.length, null);
     }
 
     private static final double FWHM = 2 * Math.sqrt(2 * Math.log(2));
     private static final double FWTM = 2 * Math.sqrt(2 * Math.log(10));
 
+    private static final ThreadLocal<GaussianFitter> GAUSSIAN = ThreadLocal.withInitial(GaussianFitter::new);
+
     /**
+     * Fits the CurveFitter GAUSSIAN function with GaussianFitter, without
+     * touching the status bar, so it can be called from several threads. The
+     * plot shows the fitted parameters themselves.
      *
      * @param xi array with x values
      * @param yi array with y values
@@ -83,13 +98,27 @@ public class Fitter {
      * @return an array containing the parameters of the fit
      */
     public static double[] GaussianFit(double[] xi, double[] yi, boolean showplot) {
-        CurveFitter cf = new CurveFitter(xi, yi);
-        cf.setStatusAndEsc("Optimization: Iteration ", true);
-        cf.doFit(CurveFitter.GAUSSIAN, false);
+        double[] params = GAUSSIAN.get().fit(xi, yi, xi.length);
         if (showplot) {
-            Plotter.plot(cf, false);
+            Plotter.plot("Gaussian", "y = a + (b-a)*exp(-(x-c)*(x-c)/(2*d*d))", xi, yi, params, 4,
+                    x -> GaussianFitter.f(params, x), getRSquared(xi, yi, params), false);
+        }
+        return params;
+    }
+
+    private static double getRSquared(double[] xi, double[] yi, double[] params) {
+        double avg = 0;
+        for (double y : yi) {
+            avg += y / yi.length;
+        }
+        double sst = 0;
+        double sse = 0;
+        for (int i = 0; i < xi.length; i++) {
+            double r = yi[i] - GaussianFitter.f(params, xi[i]);
+            sst += (yi[i] - avg) * (yi[i] - avg);
+            sse += r * r;
         }
-        return cf.getParams();
+        return sst > 0 ? 1 - sse / sst : 1;
     }
 
      /**
@@ -112,7 +141,16 @@ public class Fitter {
      * @return the resolution based on gaussian fit of the data
      */
     public static FPoint2D resolution(double[] xi, double[] yi, double pixwidth, boolean showplot) {
-        double[] params = GaussianFit(xi, yi, showplot);
+        return resolution(GaussianFit(xi, yi, showplot), pixwidth);
+    }
+
+    /**
+     * 
+     * @param params the parameters of a Gaussian fit
+     * @param pixwidth pixel width
+     * @return the FWHM and FWTM of the fitted gaussian
+     */
+    public static FPoint2D resolution(double[] params, double pixwidth) {
         return new FPoint2D(params[3] * FWHM * pixwidth, params[3] * FWTM * pixwidth);
     }
 
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+/**
+ * Levenberg-Marquardt fit of the CurveFitter GAUSSIAN function
+ * y = a + (b - a) * exp(-(x - c)^2 / (2 * d^2)) with the analytic Jacobian.
+ *
+ * The parameters are the ones of CurveFitter (c the center, d the sigma), the
+ * start values come from the run of the profile above half maximum. An
+ * instance keeps its workspace between fits, so it must not be shared
+ * between threads; Fitter keeps one per thread.
+ *
+ * @author alex
+ */
+public class GaussianFitter {
+
+    private static final int NPARAMS = 4;
+    private static final int MAXITERATIONS = 200;
+    private static final double TOLERANCE = 1e-10;
+    private static final double FWHM = 2 * Math.sqrt(2 * Math.log(2));
+
+    private final double[][] alpha = new double[NPARAMS][NPARAMS];
+    private final double[][] lhs = new double[NPARAMS][NPARAMS];
+    private final double[] beta = new double[NPARAMS];
+    private final double[] delta = new double[NPARAMS];
+    private final double[] jacobian = new double[NPARAMS];
+    private final double[] trial = new double[NPARAMS];
+    private int iterations;
+
+    /**
+     *
+     * @param x array with x values
+     * @param y array with y values
+     * @param n the number of points to use
+     * @return the parameters a (offset), b (peak), c (center), d (sigma)
+     */
+    public double[] fit(double[] x, double[] y, int n) {
+        double[] params = new double[NPARAMS];
+        getInitialParams(x, y, n, params);
+        iterations = 0;
+        if (n <= NPARAMS) {
+            return params;
+        }
+        double lambda = 1e-3;
+        double sse = getSSE(x, y, n, params);
+        while (iterations++ < MAXITERATIONS) {
+            buildNormalEquations(x, y, n, params);
+            boolean improved = false;
+            while (!improved && lambda < 1e10) {
+                for (int i = 0; i < NPARAMS; i++) {
+                    System.arraycopy(alpha[i], 0, lhs[i], 0, NPARAMS);
+                    lhs[i][i] += lambda * (alpha[i][i] == 0 ? 1 : alpha[i][i]);
+                }
+                if (!solve()) {
+                    lambda *= 10;
+                    continue;
+                }
+                for (int i = 0; i < NPARAMS; i++) {
+                    trial[i] = params[i] + delta[i];
+                }
+                double tsse = getSSE(x, y, n, trial);
+                if (tsse <= sse) {
+                    improved = true;
+                    System.arraycopy(trial, 0, params, 0, NPARAMS);
+                    lambda = Math.max(lambda / 10, 1e-12);
+                    boolean converged = sse - tsse <= TOLERANCE * sse;
+                    sse = tsse;
+                    if (converged) {
+                        params[3] = Math.abs(params[3]);
+                        return params;
+                    }
+                } else {
+                    lambda *= 10;
+                }
+            }
+            if (!improved) {
+                break; // no step reduces the residuals any more
+            }
+        }
+        params[3] = Math.abs(params[3]);
+        return params;
+    }
+
+    /**
+     *
+     * @return the iterations of the last fit
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Offset and peak from the profile extremes, center from the first moment
+     * and sigma from the width of the run above half maximum around the peak,
+     * so the baseline noise does not bias them
+     */
+    private static void getInitialParams(double[] x, double[] y, int n, double[] params) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int imax = 0;
+        for (int i = 0; i < n; i++) {
+            if (y[i] < min) {
+                min = y[i];
+            }
+            if (y[i] > max) {
+                max = y[i];
+                imax = i;
+            }
+        }
+        params[0] = n > 0 ? min : 0;
+        params[1] = n > 0 ? max : 0;
+        params[2] = n > 0 ? x[imax] : 0;
+        params[3] = 1;
+        if (n < 2 || !(max > min)) {
+            return;
+        }
+        double half = 0.5 * (min + max);
+        int lo = imax;
+        while (lo > 0 && y[lo - 1] > half) {
+            lo--;
+        }
+        int hi = imax;
+        while (hi < n - 1 && y[hi + 1] > half) {
+            hi++;
+        }
+        double sw = 0;
+        double swx = 0;
+        for (int i = lo; i <= hi; i++) {
+            sw += y[i] - half;
+            swx += (y[i] - half) * x[i];
+        }
+        params[2] = swx / sw;
+        double xl = lo > 0 ? x[lo - 1] + (half - y[lo - 1]) / (y[lo] - y[lo - 1]) * (x[lo] - x[lo - 1]) : x[lo];
+        double xr = hi < n - 1 ? x[hi] + (y[hi] - half) / (y[hi] - y[hi + 1]) * (x[hi + 1] - x[hi]) : x[hi];
+        double sigma = Math.abs(xr - xl) / FWHM;
+        params[3] = sigma > 0 ? sigma : 0.5 * Math.abs(x[1] - x[0]);
+        if (!(params[3] > 0)) {
+            params[3] = 1;
+        }
+    }
+
+    /**
+     *
+     * @param params the parameters a, b, c and d
+     * @param x the x value
+     * @return the gaussian at x
+     */
+    public static double f(double[] params, double x) {
+        double dx = x - params[2];
+        return params[0] + (params[1] - params[0]) * Math.exp(-dx * dx / (2 * params[3] * params[3]));
+    }
+
+    private static double getSSE(double[] x, double[] y, int n, double[] p) {
+        double sse = 0;
+        double s2 = 2 * p[3] * p[3];
+        for (int i = 0; i < n; i++) {
+            double dx = x[i] - p[2];
+            double r = y[i] - (p[0] + (p[1] - p[0]) * Math.exp(-dx * dx / s2));
+            sse += r * r;
+        }
+        return sse;
+    }
+
+    /**
+     * J'J in alpha and J'r in beta for the current parameters
+     */
+    private void buildNormalEquations(double[] x, double[] y, int n, double[] p) {
+        for (int i = 0; i < NPARAMS; i++) {
+            beta[i] = 0;
+            for (int j = 0; j < NPARAMS; j++) {
+                alpha[i][j] = 0;
+            }
+        }
+        double amp = p[1] - p[0];
+        double d2 = p[3] * p[3];
+        for (int k = 0; k < n; k++) {
+            double dx = x[k] - p[2];
+            double e = Math.exp(-dx * dx / (2 * d2));
+            double r = y[k] - (p[0] + amp * e);
+            jacobian[0] = 1 - e;
+            jacobian[1] = e;
+            jacobian[2] = amp * e * dx / d2;
+            jacobian[3] = amp * e * dx * dx / (d2 * p[3]);
+            for (int i = 0; i < NPARAMS; i++) {
+                beta[i] += jacobian[i] * r;
+                for (int j = 0; j <= i; j++) {
+                    alpha[i][j] += jacobian[i] * jacobian[j];
+                }
+            }
+        }
+        for (int i = 0; i < NPARAMS; i++) {
+            for (int j = i + 1; j < NPARAMS; j++) {
+                alpha[i][j] = alpha[j][i];
+            }
+        }
+    }
+
+    /**
+     * Cholesky solution of lhs * delta = beta, lhs is overwritten
+     *
+     * @return false if lhs is not positive definite
+     */
+    private boolean solve() {
+        return Cholesky.solve(lhs, beta, delta, NPARAMS);
+    }
+
+}
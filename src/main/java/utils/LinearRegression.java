@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+/**
+ * Least squares line y = a + b * x accumulated point by point. The means and
+ * the centered sums of squares and products are updated as in Welford's
+ * algorithm, so large offsets in x or y do not cancel digits. Call clear to
+ * reuse it for another line.
+ *
+ * @author alex
+ */
+public class LinearRegression {
+
+    private long n;
+    private double meanx, meany;
+    private double sxx, syy, sxy;
+
+    /**
+     * Forgets all the points
+     */
+    public void clear() {
+        n = 0;
+        meanx = 0;
+        meany = 0;
+        sxx = 0;
+        syy = 0;
+        sxy = 0;
+    }
+
+    /**
+     *
+     * @param x the x value
+     * @param y the y value
+     */
+    public void add(double x, double y) {
+        n++;
+        double dx = x - meanx;
+        double dy = y - meany;
+        meanx += dx / n;
+        meany += dy / n;
+        sxx += dx * (x - meanx);
+        syy += dy * (y - meany);
+        sxy += dx * (y - meany);
+    }
+
+    /**
+     *
+     * @param x array with x values
+     * @param y array with y values
+     * @param count the number of points to add
+     */
+    public void add(double[] x, double[] y, int count) {
+        for (int i = 0; i < count; i++) {
+            add(x[i], y[i]);
+        }
+    }
+
+    /**
+     *
+     * @return the number of points
+     */
+    public long getN() {
+        return n;
+    }
+
+    /**
+     *
+     * @return the slope b, 0 if all x are equal (as CurveFitter)
+     */
+    public double getSlope() {
+        return sxx == 0 ? 0 : sxy / sxx;
+    }
+
+    /**
+     *
+     * @return the intercept a
+     */
+    public double getIntercept() {
+        return meany - getSlope() * meanx;
+    }
+
+    /**
+     *
+     * @return the coefficient of determination, 1 if all y are equal
+     */
+    public double getRSquared() {
+        if (syy == 0) {
+            return 1;
+        }
+        return sxy * sxy / (sxx * syy);
+    }
+
+    /**
+     *
+     * @return the sum of the squared residuals
+     */
+    public double getSumResidualsSqr() {
+        return Math.max(0, syy - getSlope() * sxy);
+    }
+
+    /**
+     *
+     * @return the standard deviation of the y values (n - 1 denominator)
+     */
+    public double getStdDevY() {
+        return n > 1 ? Math.sqrt(syy / (n - 1)) : 0;
+    }
+
+    /**
+     *
+     * @param x the x value
+     * @return the fitted y value
+     */
+    public double f(double x) {
+        return getIntercept() + getSlope() * x;
+    }
+
+    /**
+     *
+     * @param x array with x values
+     * @param y array with y values
+     * @param count the number of points
+     * @param residuals the array to fill, a new one if null or too short
+     * @return the residuals y - f(x)
+     */
+    public double[] getResiduals(double[] x, double[] y, int count, double[] residuals) {
+        if (residuals == null || residuals.length < count) {
+            residuals = new double[count];
+        }
+        double a = getIntercept();
+        double b = getSlope();
+        for (int i = 0; i < count; i++) {
+            residuals[i] = y[i] - (a + b * x[i]);
+        }
+        return residuals;
+    }
+
+    /**
+     *
+     * @param x array with x values
+     * @param y array with y values
+     * @param count the number of points
+     * @return the largest residual y - f(x), NaN without points
+     */
+    public double getMaxResidual(double[] x, double[] y, int count) {
+        double a = getIntercept();
+        double b = getSlope();
+        double max = Double.NaN;
+        for (int i = 0; i < count; i++) {
+            double r = y[i] - (a + b * x[i]);
+            if (!(r <= max)) {
+                max = r;
+            }
+        }
+        return max;
+    }
+
+    /**
+     *
+     * @param x array with x values
+     * @param y array with y values
+     * @param count the number of points
+     * @return the largest absolute residual |y - f(x)|, NaN without points
+     */
+    public double getMaxAbsResidual(double[] x, double[] y, int count) {
+        double a = getIntercept();
+        double b = getSlope();
+        double max = Double.NaN;
+        for (int i = 0; i < count; i++) {
+            double r = Math.abs(y[i] - (a + b * x[i]));
+            if (!(r <= max)) {
+                max = r;
+            }
+        }
+        return max;
+    }
+
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import ij.*;
+import ij.measure.Calibration;
+import ij.process.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Reader for MetaImage (.mhd/.raw and .mha) files. The pixel data is memory
+ * mapped and every slice is decoded only when it is requested, so projections
+ * and reconstructions can be analysed without loading the whole study on the
+ * heap.
+ *
+ * @author alex
+ */
+public class MetaImage {
+
+    private static final long MAXCHUNK = Integer.MAX_VALUE;
+    private static final int MAXHEADER = 64 * 1024;
+
+    private final Map<String, String> header = new LinkedHashMap<>();
+    private final String text;
+    private final int width, height, nslices;
+    private final String type;
+    private final int bytes;
+    private final ByteOrder order;
+    private final MappedByteBuffer[] chunks;
+    private final int slicesperchunk;
+
+    private MetaImage(File file) throws IOException {
+        // the header is text, for .mha the data follows the ElementDataFile line
+        byte[] raw = new byte[(int) Math.min(file.length(), MAXHEADER)];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(raw);
+        }
+        int end = 0;
+        StringBuilder sb = new StringBuilder();
+        while (end < raw.length) {
+            int eol = end;
+            while (eol < raw.length && raw[eol] != '\n') {
+                eol++;
+            }
+            String line = new String(raw, end, eol - end, StandardCharsets.ISO_8859_1).trim();
+            end = Math.min(raw.length, eol + 1);
+            int i = line.indexOf('=');
+            if (i > 0) {
+                header.put(line.substring(0, i).trim(), line.substring(i + 1).trim());
+                sb.append(line).append('\n');
+            }
+            if (line.startsWith("ElementDataFile")) {
+                break;
+            }
+        }
+        text = sb.toString();
+        if (Boolean.parseBoolean(get("CompressedData", "False"))) {
+            throw new IOException("Compressed MetaImage is not supported: " + file);
+        }
+        if (Integer.parseInt(get("ElementNumberOfChannels", "1")) != 1) {
+            throw new IOException("Multichannel MetaImage is not supported: " + file);
+        }
+        int[] dims = toInts(get("DimSize", null), file);
+        width = dims[0];
+        height = dims.length > 1 ? dims[1] : 1;
+        int n = 1;
+        for (int k = 2; k < dims.length; k++) {
+            n *= dims[k];
+        }
+        nslices = n;
+        type = get("ElementType", "MET_UCHAR");
+        bytes = getBytes(type, file);
+        // without byte order in the header big endian is assumed, as the ImageJ
+        // MetaImage reader does, our camera exports rely on it
+        boolean msb = Boolean.parseBoolean(get("ElementByteOrderMSB", get("BinaryDataByteOrderMSB", "True")));
+        order = msb ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        String datafile = get("ElementDataFile", null);
+        if (datafile == null) {
+            throw new IOException("No ElementDataFile in " + file);
+        }
+        File data;
+        long offset;
+        long slicesize = (long) width * height * bytes;
+        long size = slicesize * nslices;
+        if (datafile.equals("LOCAL")) {
+            data = file;
+            offset = end;
+        } else {
+            data = new File(datafile);
+            if (!data.isAbsolute()) {
+                data = new File(file.getAbsoluteFile().getParentFile(), datafile);
+            }
+            offset = 0;
+        }
+        long headersize = Long.parseLong(get("HeaderSize", "0"));
+        if (headersize == -1) {
+            offset = data.length() - size;
+        } else if (headersize > 0) {
+            offset += headersize;
+        }
+
+        slicesperchunk = (int) Math.max(1, MAXCHUNK / slicesize);
+        int nchunks = (nslices + slicesperchunk - 1) / slicesperchunk;
+        chunks = new MappedByteBuffer[nchunks];
+        try (FileChannel channel = FileChannel.open(data.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < offset + size) {
+                throw new IOException("Unexpected end of data in " + data);
+            }
+            for (int k = 0; k < nchunks; k++) {
+                int lslices = Math.min(slicesperchunk, nslices - k * slicesperchunk);
+                // the mapping stays valid after the channel is closed
+                chunks[k] = channel.map(FileChannel.MapMode.READ_ONLY, offset + k * slicesperchunk * slicesize, lslices * slicesize);
+            }
+        }
+    }
+
+    private String get(String key, String defaultValue) {
+        String value = header.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int[] toInts(String value, File file) throws IOException {
+        if (value == null) {
+            throw new IOException("No DimSize in " + file);
+        }
+        String[] fields = value.trim().split("\\s+");
+        int[] result = new int[fields.length];
+        for (int k = 0; k < fields.length; k++) {
+            result[k] = Integer.parseInt(fields[k]);
+        }
+        return result;
+    }
+
+    private static int getBytes(String type, File file) throws IOException {
+        switch (type) {
+            case "MET_UCHAR":
+            case "MET_CHAR":
+                return 1;
+            case "MET_USHORT":
+            case "MET_SHORT":
+                return 2;
+            case "MET_UINT":
+            case "MET_INT":
+            case "MET_FLOAT":
+                return 4;
+            case "MET_DOUBLE":
+                return 8;
+            default:
+                throw new IOException("Unsupported ElementType " + type + " in " + file);
+        }
+    }
+
+    /**
+     *
+     * @param n the slice number (1 to nslices)
+     * @return the slice bytes in the file byte order
+     */
+    private ByteBuffer getSliceBuffer(int n) {
+        int slicesize = width * height * bytes;
+        ByteBuffer chunk = chunks[(n - 1) / slicesperchunk].duplicate();
+        int start = ((n - 1) % slicesperchunk) * slicesize;
+        chunk.position(start);
+        chunk.limit(start + slicesize);
+        return chunk.slice().order(order);
+    }
+
+    /**
+     * Decodes a slice into an ImageJ processor: 8 bit for MET_UCHAR, 16 bit
+     * for MET_USHORT and MET_SHORT (with the signed offset of ImageJ), 32 bit
+     * for the rest
+     *
+     * @param n the slice number (1 to nslices)
+     * @return the slice pixels
+     */
+    ImageProcessor getProcessor(int n) {
+        ByteBuffer buffer = getSliceBuffer(n);
+        int npixels = width * height;
+        switch (type) {
+            case "MET_UCHAR": {
+                byte[] pixels = new byte[npixels];
+                buffer.get(pixels);
+                return new ByteProcessor(width, height, pixels, null);
+            }
+            case "MET_USHORT":
+            case "MET_SHORT": {
+                short[] pixels = new short[npixels];
+                buffer.asShortBuffer().get(pixels);
+                if (type.equals("MET_SHORT")) {
+                    for (int i = 0; i < npixels; i++) {
+                        pixels[i] = (short) (pixels[i] + 32768);
+                    }
+                }
+                return new ShortProcessor(width, height, pixels, null);
+            }
+            default: {
+                float[] pixels = new float[npixels];
+                switch (type) {
+                    case "MET_CHAR":
+                        for (int i = 0; i < npixels; i++) {
+                            pixels[i] = buffer.get(i);
+                        }
+                        break;
+                    case "MET_UINT":
+                        for (int i = 0; i < npixels; i++) {
+                            pixels[i] = buffer.getInt(4 * i) & 0xffffffffL;
+                        }
+                        break;
+                    case "MET_INT":
+                        for (int i = 0; i < npixels; i++) {
+                            pixels[i] = buffer.getInt(4 * i);
+                        }
+                        break;
+                    case "MET_FLOAT":
+                        buffer.asFloatBuffer().get(pixels);
+                        break;
+                    default:
+                        for (int i = 0; i < npixels; i++) {
+                            pixels[i] = (float) buffer.getDouble(8 * i);
+                        }
+                }
+                return new FloatProcessor(width, height, pixels, null);
+            }
+        }
+    }
+
+    /**
+     * A read only virtual stack over the mapped data
+     */
+    private static class MappedStack extends VirtualStack {
+
+        private final MetaImage mi;
+
+        MappedStack(MetaImage mi, String path) {
+            super(mi.width, mi.height, null, path);
+            this.mi = mi;
+        }
+
+        @Override
+        public ImageProcessor getProcessor(int n) {
+            if (n < 1 || n > mi.nslices) {
+                throw new IllegalArgumentException("Argument out of range: " + n);
+            }
+            return mi.getProcessor(n);
+        }
+
+        @Override
+        public Object getPixels(int n) {
+            return getProcessor(n).getPixels();
+        }
+
+        @Override
+        public void setPixels(Object pixels, int n) {
+        }
+
+        @Override
+        public int getSize() {
+            return mi.nslices;
+        }
+
+        @Override
+        public String getSliceLabel(int n) {
+            return null;
+        }
+
+        @Override
+        public int getBitDepth() {
+            switch (mi.type) {
+                case "MET_UCHAR":
+                    return 8;
+                case "MET_USHORT":
+                case "MET_SHORT":
+                    return 16;
+                default:
+                    return 32;
+            }
+        }
+    }
+
+    /**
+     * Opens a MetaImage as a virtual stack, the header is kept in the info
+     * property and the element spacing in the calibration
+     *
+     * @param path the .mhd or .mha file
+     * @return the image
+     * @throws IOException if the file can not be read or is not supported
+     */
+    public static ImagePlus open(String path) throws IOException {
+        File file = new File(path);
+        MetaImage mi = new MetaImage(file);
+        ImagePlus imp = new ImagePlus(file.getName(), new MappedStack(mi, path));
+        Calibration cal = imp.getCalibration();
+        String spacing = mi.get("ElementSpacing", mi.get("ElementSize", null));
+        if (spacing != null) {
+            String[] fields = spacing.trim().split("\\s+");
+            cal.pixelWidth = Double.parseDouble(fields[0]);
+            cal.pixelHeight = fields.length > 1 ? Double.parseDouble(fields[1]) : cal.pixelWidth;
+            cal.pixelDepth = fields.length > 2 ? Double.parseDouble(fields[2]) : 1;
+            cal.setUnit("mm");
+        }
+        if (mi.type.equals("MET_SHORT")) {
+            cal.setSigned16BitCalibration();
+        }
+        imp.setProperty("Info", mi.text);
+        ij.io.FileInfo fi = new ij.io.FileInfo();
+        fi.directory = file.getAbsoluteFile().getParent() + File.separator;
+        fi.fileName = file.getName();
+        imp.setFileInfo(fi);
+        return imp;
+    }
+
+    /**
+     *
+     * @param path a file path
+     * @return true if the file has a MetaImage extension
+     */
+    public static boolean isMetaImage(String path) {
+        String ext = Commons.getFileExtension(path).toLowerCase(Locale.ROOT);
+        return ext.equals("mhd") || ext.equals("mha");
+    }
+
+}
@@ -20,6 +20,7 @@ import ij.gui.*;
 import ij.util.*;
 import ij.measure.*;
 import java.awt.*;
+import java.util.function.DoubleUnaryOperator;
 
 /**
  *
@@ -43,6 +44,25 @@ public class Plotter {
             plot.show();
             return;
         }
+        final double[] params = cf.getParams();
+        plot(cf.getName(), cf.getFormula(), x, y, params, cf.getNumParams(), v -> cf.f(params, v), cf.getRSquared(), eightBitCalibrationPlot);
+    }
+
+    /**
+     * Plots the data points and a fitted function
+     *
+     * @param name the fit name
+     * @param formula the fitted formula
+     * @param x array with x values
+     * @param y array with y values
+     * @param params the fitted parameters
+     * @param nparams the number of parameters to show
+     * @param f the fitted function
+     * @param rsquared the coefficient of determination
+     * @param eightBitCalibrationPlot resample image to 8 bit
+     */
+    public static void plot(String name, String formula, double[] x, double[] y, double[] params, int nparams,
+            DoubleUnaryOperator f, double rsquared, boolean eightBitCalibrationPlot) {
         int npoints = Math.min(Math.max(x.length, 100), 1000);
         double[] a = Tools.getMinMax(x);
         double xmin = a[0], xmax = a[1];
@@ -61,33 +81,30 @@ public class Plotter {
             px[i] = tmp;
             tmp += inc;
         }
-        double[] params = cf.getParams();
         for (int i = 0; i < npoints; i++) {
-            py[i] = cf.f(params, px[i]);
+            py[i] = f.applyAsDouble(px[i]);
         }
         a = Tools.getMinMax(py);
         double dataRange = ymax - ymin;
         ymin = Math.max(ymin - dataRange, Math.min(ymin, a[0])); //expand y range for curve, but not too much
         ymax = Math.min(ymax + dataRange, Math.max(ymax, a[1]));
-        Plot plot = new Plot(cf.getFormula(), "X", "Y", px, py);
+        Plot plot = new Plot(formula, "X", "Y", px, py);
         plot.setLimits(xmin, xmax, ymin, ymax);
         plot.setColor(Color.RED);
         plot.addPoints(x, y, PlotWindow.CIRCLE);
         plot.setColor(Color.BLUE);
 
         StringBuilder legend = new StringBuilder(100);
-        legend.append(cf.getName());
+        legend.append(name);
         legend.append('\n');
-        legend.append(cf.getFormula());
+        legend.append(formula);
         legend.append('\n');
-        double[] p = cf.getParams();
-        int n = cf.getNumParams();
         char pChar = 'a';
-        for (int i = 0; i < n; i++) {
-            legend.append(pChar).append(" = ").append(IJ.d2s(p[i], 5, 9)).append('\n');
+        for (int i = 0; i < nparams; i++) {
+            legend.append(pChar).append(" = ").append(IJ.d2s(params[i], 5, 9)).append('\n');
             pChar++;
         }
-        legend.append("R^2 = ").append(IJ.d2s(cf.getRSquared(), 4));
+        legend.append("R^2 = ").append(IJ.d2s(rsquared, 4));
         legend.append('\n');
         plot.addLabel(0.02, 0.1, legend.toString());
         plot.setColor(Color.BLUE);
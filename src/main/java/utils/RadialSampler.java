@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import ij.gui.Roi;
+
+/**
+ * Rays cast from a center to the border of a ROI. The pixel indices and
+ * weights of every sample are computed once, so every image of the same
+ * geometry (the slices of a reconstruction) is sampled with one indexed
+ * gather per ray.
+ *
+ * A ray ends at its first sample outside the ROI. The nearest mode truncates
+ * the sample position to the pixel, as the rays of Tomographic_Uniformity
+ * always did; the bilinear mode interpolates the four neighbours with the
+ * pixel centers at integer coordinates, as ImageProcessor.getInterpolatedValue.
+ *
+ * @author alex
+ */
+public class RadialSampler {
+
+    private final int nangles;
+    private final int taps;
+    private final int[][] indices;
+    private final float[][] weights;
+    private final int[] lengths;
+    private int minlength, maxlength;
+
+    /**
+     * Creator
+     *
+     * @param width the image width
+     * @param height the image height
+     * @param cx the x of the center
+     * @param cy the y of the center
+     * @param roi the region the rays are limited to
+     * @param nangles the number of rays over 360 degrees
+     * @param rstep the distance between samples in pixels
+     * @param bilinear true to interpolate, false for the nearest pixel
+     */
+    public RadialSampler(int width, int height, double cx, double cy, Roi roi, int nangles, double rstep, boolean bilinear) {
+        this.nangles = nangles;
+        this.taps = bilinear ? 4 : 1;
+        indices = new int[nangles][];
+        weights = new float[nangles][];
+        lengths = new int[nangles];
+        minlength = Integer.MAX_VALUE;
+        for (int a = 0; a < nangles; a++) {
+            double angle = 2 * Math.PI * a / nangles;
+            double cos = Math.cos(angle);
+            double sin = Math.sin(angle);
+            int n = 0;
+            while (true) {
+                int x = (int) (cx + n * rstep * cos);
+                int y = (int) (cy + n * rstep * sin);
+                if (x < 0 || y < 0 || x >= width || y >= height || !roi.contains(x, y)) {
+                    break;
+                }
+                n++;
+            }
+            lengths[a] = n;
+            minlength = Math.min(minlength, n);
+            maxlength = Math.max(maxlength, n);
+            indices[a] = new int[taps * n];
+            weights[a] = new float[taps * n];
+            for (int j = 0; j < n; j++) {
+                double px = cx + j * rstep * cos;
+                double py = cy + j * rstep * sin;
+                if (!bilinear) {
+                    indices[a][j] = (int) py * width + (int) px;
+                    weights[a][j] = 1;
+                    continue;
+                }
+                int x0 = (int) Math.floor(px);
+                int y0 = (int) Math.floor(py);
+                double fx = px - x0;
+                double fy = py - y0;
+                int x1 = Math.min(x0 + 1, width - 1);
+                int y1 = Math.min(y0 + 1, height - 1);
+                x0 = Math.max(x0, 0);
+                y0 = Math.max(y0, 0);
+                int k = 4 * j;
+                indices[a][k] = y0 * width + x0;
+                indices[a][k + 1] = y0 * width + x1;
+                indices[a][k + 2] = y1 * width + x0;
+                indices[a][k + 3] = y1 * width + x1;
+                weights[a][k] = (float) ((1 - fx) * (1 - fy));
+                weights[a][k + 1] = (float) (fx * (1 - fy));
+                weights[a][k + 2] = (float) ((1 - fx) * fy);
+                weights[a][k + 3] = (float) (fx * fy);
+            }
+        }
+        if (nangles == 0) {
+            minlength = 0;
+        }
+    }
+
+    /**
+     *
+     * @return the number of rays
+     */
+    public int getAngles() {
+        return nangles;
+    }
+
+    /**
+     *
+     * @param angle the ray number
+     * @return the number of samples of the ray
+     */
+    public int getLength(int angle) {
+        return lengths[angle];
+    }
+
+    /**
+     *
+     * @return the number of samples of the shortest ray
+     */
+    public int getMinLength() {
+        return minlength;
+    }
+
+    /**
+     *
+     * @return the number of samples of the longest ray
+     */
+    public int getMaxLength() {
+        return maxlength;
+    }
+
+    /**
+     * Samples a ray
+     *
+     * @param pixels the pixel array, byte[], short[] or float[]
+     * @param angle the ray number
+     * @param values the array to fill, a new one if null or too short
+     * @return the values along the ray, from the center
+     */
+    public double[] sample(Object pixels, int angle, double[] values) {
+        int n = lengths[angle];
+        if (values == null || values.length < n) {
+            values = new double[n];
+        }
+        int[] lindices = indices[angle];
+        float[] lweights = weights[angle];
+        if (taps == 1) {
+            for (int j = 0; j < n; j++) {
+                values[j] = Uniformity.getValue(pixels, lindices[j]);
+            }
+            return values;
+        }
+        for (int j = 0, k = 0; j < n; j++) {
+            double v = 0;
+            for (int t = 0; t < taps; t++, k++) {
+                v += lweights[k] * Uniformity.getValue(pixels, lindices[k]);
+            }
+            values[j] = v;
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Fit of y = a + b * sin(c * x + d) with the frequency c known. Written as
+ * y = a + p * sin(c * x) + q * cos(c * x) it is a linear least squares
+ * problem: the points are accumulated in its 3x3 normal equations, one at a
+ * time if needed, and solved without iterations. refine fits the four
+ * parameters with Levenberg-Marquardt starting from that solution, fit does
+ * it when the frequency is only known to be in a range.
+ *
+ * @author alex
+ */
+public class SineFit {
+
+    private final double omega;
+    private final double[][] ata = new double[3][3];
+    private final double[] aty = new double[3];
+    private long n;
+    private double y0;
+
+    /**
+     * Creator
+     *
+     * @param omega the frequency c
+     */
+    public SineFit(double omega) {
+        this.omega = omega;
+    }
+
+    /**
+     * Forgets all the points
+     */
+    public void clear() {
+        n = 0;
+        y0 = 0;
+        for (int i = 0; i < 3; i++) {
+            aty[i] = 0;
+            for (int j = 0; j < 3; j++) {
+                ata[i][j] = 0;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param x the x value
+     * @param y the y value
+     */
+    public void add(double x, double y) {
+        if (n == 0) {
+            y0 = y; // y is accumulated relative to the first value
+        }
+        n++;
+        double s = Math.sin(omega * x);
+        double c = Math.cos(omega * x);
+        double dy = y - y0;
+        ata[0][0] += 1;
+        ata[0][1] += s;
+        ata[0][2] += c;
+        ata[1][1] += s * s;
+        ata[1][2] += s * c;
+        ata[2][2] += c * c;
+        aty[0] += dy;
+        aty[1] += s * dy;
+        aty[2] += c * dy;
+    }
+
+    /**
+     *
+     * @param x array with x values
+     * @param y array with y values
+     * @param count the number of points to add
+     */
+    public void add(double[] x, double[] y, int count) {
+        for (int i = 0; i < count; i++) {
+            add(x[i], y[i]);
+        }
+    }
+
+    /**
+     *
+     * @return the number of points
+     */
+    public long getN() {
+        return n;
+    }
+
+    /**
+     *
+     * @return the parameters a, b, c and d, NaN while the points do not
+     * determine the sinusoid
+     */
+    public double[] getParams() {
+        double[][] a = new double[3][3];
+        double[] b = new double[3];
+        double[] x = new double[3];
+        for (int i = 0; i < 3; i++) {
+            b[i] = aty[i];
+            for (int j = i; j < 3; j++) {
+                a[i][j] = ata[i][j];
+                a[j][i] = ata[i][j];
+            }
+        }
+        if (n < 3 || !Cholesky.solve(a, b, x, 3)) {
+            return new double[]{Double.NaN, Double.NaN, omega, Double.NaN};
+        }
+        // p * sin + q * cos = b * sin(c * x + d)
+        return new double[]{y0 + x[0], Math.hypot(x[1], x[2]), omega, Math.atan2(x[2], x[1])};
+    }
+
+    /**
+     *
+     * @param params the parameters a, b, c and d
+     * @param x the x value
+     * @return the sinusoid at x
+     */
+    public static double f(double[] params, double x) {
+        return params[0] + params[1] * Math.sin(params[2] * x + params[3]);
+    }
+
+    /**
+     *
+     * @param params the parameters a, b, c and d
+     * @param x array with x values
+     * @param y array with y values
+     * @return the residuals y - f(x)
+     */
+    public static double[] getResiduals(double[] params, double[] x, double[] y) {
+        double[] residuals = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            residuals[i] = y[i] - f(params, x[i]);
+        }
+        return residuals;
+    }
+
+    /**
+     * Levenberg-Marquardt fit of the four parameters, the frequency included
+     *
+     * @param x array with x values
+     * @param y array with y values
+     * @param params the start parameters, usually from getParams
+     * @return the refined parameters, params if no step reduces the residuals
+     */
+    public static double[] refine(double[] x, double[] y, double[] params) {
+        double[] p = params.clone();
+        double[][] alpha = new double[4][4];
+        double[][] lhs = new double[4][4];
+        double[] beta = new double[4];
+        double[] delta = new double[4];
+        double[] jacobian = new double[4];
+        double[] trial = new double[4];
+        double sse = getSSE(x, y, p);
+        double lambda = 1e-3;
+        for (int iteration = 0; iteration < 200; iteration++) {
+            for (int i = 0; i < 4; i++) {
+                beta[i] = 0;
+                for (int j = 0; j < 4; j++) {
+                    alpha[i][j] = 0;
+                }
+            }
+            for (int k = 0; k < x.length; k++) {
+                double arg = p[2] * x[k] + p[3];
+                double s = Math.sin(arg);
+                double c = Math.cos(arg);
+                double r = y[k] - (p[0] + p[1] * s);
+                jacobian[0] = 1;
+                jacobian[1] = s;
+                jacobian[2] = p[1] * x[k] * c;
+                jacobian[3] = p[1] * c;
+                for (int i = 0; i < 4; i++) {
+                    beta[i] += jacobian[i] * r;
+                    for (int j = 0; j <= i; j++) {
+                        alpha[i][j] += jacobian[i] * jacobian[j];
+                    }
+                }
+            }
+            boolean improved = false;
+            while (!improved && lambda < 1e10) {
+                for (int i = 0; i < 4; i++) {
+                    for (int j = 0; j <= i; j++) {
+                        lhs[i][j] = alpha[i][j];
+                        lhs[j][i] = alpha[i][j];
+                    }
+                    lhs[i][i] += lambda * (alpha[i][i] == 0 ? 1 : alpha[i][i]);
+                }
+                if (Cholesky.solve(lhs, beta, delta, 4)) {
+                    for (int i = 0; i < 4; i++) {
+                        trial[i] = p[i] + delta[i];
+                    }
+                    double tsse = getSSE(x, y, trial);
+                    if (tsse <= sse) {
+                        improved = true;
+                        System.arraycopy(trial, 0, p, 0, 4);
+                        lambda = Math.max(lambda / 10, 1e-12);
+                        boolean converged = sse - tsse <= 1e-12 * sse;
+                        sse = tsse;
+                        if (converged) {
+                            return p;
+                        }
+                        continue;
+                    }
+                }
+                lambda *= 10;
+            }
+            if (!improved) {
+                break;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Fit of the four parameters with the frequency unknown: the closed form
+     * fit is solved over a grid of frequencies and the one with the lowest
+     * residuals is refined
+     *
+     * @param x array with x values
+     * @param y array with y values
+     * @param count the number of points
+     * @param cmin the lowest frequency
+     * @param cmax the highest frequency
+     * @param steps the number of intervals of the frequency grid
+     * @return the parameters a, b, c and d, NaN if no frequency determines
+     * the sinusoid
+     */
+    public static double[] fit(double[] x, double[] y, int count, double cmin, double cmax, int steps) {
+        double[] lx = Arrays.copyOf(x, count);
+        double[] ly = Arrays.copyOf(y, count);
+        double[] best = null;
+        double bestsse = Double.POSITIVE_INFINITY;
+        for (int i = 0; i <= steps; i++) {
+            SineFit sf = new SineFit(cmin + (cmax - cmin) * i / steps);
+            sf.add(lx, ly, count);
+            double[] p = sf.getParams();
+            if (Double.isNaN(p[0])) {
+                continue;
+            }
+            double sse = getSSE(lx, ly, p);
+            if (sse < bestsse) {
+                bestsse = sse;
+                best = p;
+            }
+        }
+        return best == null ? new double[]{Double.NaN, Double.NaN, Double.NaN, Double.NaN} : refine(lx, ly, best);
+    }
+
+    private static double getSSE(double[] x, double[] y, double[] p) {
+        double sse = 0;
+        for (int i = 0; i < x.length; i++) {
+            double r = y[i] - f(p, x[i]);
+            sse += r * r;
+        }
+        return sse;
+    }
+
+}
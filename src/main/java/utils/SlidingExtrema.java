@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+/**
+ * Running minimum and maximum over a centred window along image rows or
+ * columns using the van Herk / Gil-Werman algorithm: three comparisons per
+ * pixel whatever the window length.
+ *
+ * Pixels outside the mask are ignored, windows are truncated at the line
+ * ends. The buffers are reused between lines, so an instance must not be
+ * shared between threads.
+ *
+ * @author alex
+ */
+public class SlidingExtrema {
+
+    private final int window;
+    private final int half;
+    private float[] lo, hi;
+    private float[] g, h;
+    private float[] min, max;
+
+    /**
+     * Creator
+     *
+     * @param window the window length in pixels, must be odd
+     */
+    public SlidingExtrema(int window) {
+        if (window < 1 || window % 2 == 0) {
+            throw new IllegalArgumentException("Window length must be odd: " + window);
+        }
+        this.window = window;
+        this.half = window / 2;
+        allocate(64);
+    }
+
+    private void allocate(int n) {
+        int length = n + 2 * half;
+        lo = new float[length];
+        hi = new float[length];
+        g = new float[length];
+        h = new float[length];
+        min = new float[n];
+        max = new float[n];
+    }
+
+    /**
+     * Computes the window extrema along a line of the image
+     *
+     * @param pixels a float, short or byte pixel array
+     * @param mask the field of view mask, one byte per pixel
+     * @param offset the index of the first pixel of the line
+     * @param stride 1 for rows, the image width for columns
+     * @param n the number of pixels in the line
+     */
+    public void scan(Object pixels, byte[] mask, int offset, int stride, int n) {
+        if (min.length < n) {
+            allocate(n);
+        }
+        int length = n + 2 * half;
+        for (int i = 0; i < half; i++) {
+            lo[i] = lo[length - 1 - i] = Float.POSITIVE_INFINITY;
+            hi[i] = hi[length - 1 - i] = Float.NEGATIVE_INFINITY;
+        }
+        Uniformity.getLine(pixels, offset, stride, n, lo, half);
+        for (int i = 0, index = offset; i < n; i++, index += stride) {
+            if (mask[index] != 0) {
+                hi[i + half] = lo[i + half];
+            } else {
+                lo[i + half] = Float.POSITIVE_INFINITY;
+                hi[i + half] = Float.NEGATIVE_INFINITY;
+            }
+        }
+        runningMin(lo, length);
+        for (int i = 0; i < n; i++) {
+            min[i] = Math.min(h[i], g[i + window - 1]);
+        }
+        runningMax(hi, length);
+        for (int i = 0; i < n; i++) {
+            max[i] = Math.max(h[i], g[i + window - 1]);
+        }
+    }
+
+    private void runningMin(float[] a, int length) {
+        for (int i = 0; i < length; i++) {
+            g[i] = (i % window == 0) ? a[i] : Math.min(g[i - 1], a[i]);
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            h[i] = (i == length - 1 || (i + 1) % window == 0) ? a[i] : Math.min(h[i + 1], a[i]);
+        }
+    }
+
+    private void runningMax(float[] a, int length) {
+        for (int i = 0; i < length; i++) {
+            g[i] = (i % window == 0) ? a[i] : Math.max(g[i - 1], a[i]);
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            h[i] = (i == length - 1 || (i + 1) % window == 0) ? a[i] : Math.max(h[i + 1], a[i]);
+        }
+    }
+
+    /**
+     *
+     * @param i the position in the last scanned line
+     * @return the minimum in the window centred at i
+     */
+    public float getMin(int i) {
+        return min[i];
+    }
+
+    /**
+     *
+     * @param i the position in the last scanned line
+     * @return the maximum in the window centred at i
+     */
+    public float getMax(int i) {
+        return max[i];
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+}
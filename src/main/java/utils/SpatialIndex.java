@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import java.awt.Polygon;
+import java.util.Arrays;
+
+/**
+ * Uniform grid over a set of points (detected maxima, sources, ...) to find
+ * the ones near a position without testing all of them. The points of every
+ * cell are stored contiguously in the order they were given, so a query
+ * visits only the cells the search circle touches.
+ *
+ * @author alex
+ */
+public class SpatialIndex {
+
+    private final double[] x, y;
+    private final double cellsize;
+    private final double xmin, ymin;
+    private final int ncols, nrows;
+    private final int[] start;
+    private final int[] points;
+
+    /**
+     * Creator
+     *
+     * @param x array with x values
+     * @param y array with y values
+     * @param n the number of points
+     * @param cellsize the cell side, about the usual search radius
+     */
+    public SpatialIndex(double[] x, double[] y, int n, double cellsize) {
+        this.x = Arrays.copyOf(x, n);
+        this.y = Arrays.copyOf(y, n);
+        this.cellsize = cellsize > 0 ? cellsize : 1;
+        double lxmin = Double.POSITIVE_INFINITY, lymin = Double.POSITIVE_INFINITY;
+        double lxmax = Double.NEGATIVE_INFINITY, lymax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            lxmin = Math.min(lxmin, x[i]);
+            lymin = Math.min(lymin, y[i]);
+            lxmax = Math.max(lxmax, x[i]);
+            lymax = Math.max(lymax, y[i]);
+        }
+        xmin = n > 0 ? lxmin : 0;
+        ymin = n > 0 ? lymin : 0;
+        ncols = n > 0 ? (int) ((lxmax - xmin) / this.cellsize) + 1 : 1;
+        nrows = n > 0 ? (int) ((lymax - ymin) / this.cellsize) + 1 : 1;
+        // counting sort of the points by cell
+        start = new int[ncols * nrows + 1];
+        int[] cells = new int[n];
+        for (int i = 0; i < n; i++) {
+            cells[i] = getCell(getColumn(x[i]), getRow(y[i]));
+            start[cells[i] + 1]++;
+        }
+        for (int c = 0; c < ncols * nrows; c++) {
+            start[c + 1] += start[c];
+        }
+        points = new int[n];
+        int[] next = Arrays.copyOf(start, ncols * nrows);
+        for (int i = 0; i < n; i++) {
+            points[next[cells[i]]++] = i;
+        }
+    }
+
+    /**
+     * Creator
+     *
+     * @param p the points, as returned by MaximumFinder
+     * @param cellsize the cell side, about the usual search radius
+     */
+    public SpatialIndex(Polygon p, double cellsize) {
+        this(toDouble(p.xpoints, p.npoints), toDouble(p.ypoints, p.npoints), p.npoints, cellsize);
+    }
+
+    private static double[] toDouble(int[] values, int n) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = values[i];
+        }
+        return result;
+    }
+
+    private int getColumn(double px) {
+        return (int) Math.floor((px - xmin) / cellsize);
+    }
+
+    private int getRow(double py) {
+        return (int) Math.floor((py - ymin) / cellsize);
+    }
+
+    private int getCell(int col, int row) {
+        return row * ncols + col;
+    }
+
+    /**
+     *
+     * @return the number of points
+     */
+    public int size() {
+        return x.length;
+    }
+
+    /**
+     *
+     * @param px the x of the position
+     * @param py the y of the position
+     * @param radius the search radius
+     * @return the index of the nearest point closer than radius, -1 if none
+     */
+    public int getNearest(double px, double py, double radius) {
+        int best = -1;
+        double bestd = radius * radius;
+        int c0 = Math.max(0, getColumn(px - radius)), c1 = Math.min(ncols - 1, getColumn(px + radius));
+        int r0 = Math.max(0, getRow(py - radius)), r1 = Math.min(nrows - 1, getRow(py + radius));
+        for (int row = r0; row <= r1; row++) {
+            for (int col = c0; col <= c1; col++) {
+                int cell = getCell(col, row);
+                for (int k = start[cell]; k < start[cell + 1]; k++) {
+                    int i = points[k];
+                    double dx = x[i] - px;
+                    double dy = y[i] - py;
+                    double d = dx * dx + dy * dy;
+                    if (d < bestd || (d == bestd && best >= 0 && i < best)) {
+                        best = i;
+                        bestd = d;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     *
+     * @param px the x of the position
+     * @param py the y of the position
+     * @param radius the search radius
+     * @return the lowest index of the points closer than radius (the
+     * strongest one for MaximumFinder output), -1 if none
+     */
+    public int getFirst(double px, double py, double radius) {
+        int best = -1;
+        double r2 = radius * radius;
+        int c0 = Math.max(0, getColumn(px - radius)), c1 = Math.min(ncols - 1, getColumn(px + radius));
+        int r0 = Math.max(0, getRow(py - radius)), r1 = Math.min(nrows - 1, getRow(py + radius));
+        for (int row = r0; row <= r1; row++) {
+            for (int col = c0; col <= c1; col++) {
+                int cell = getCell(col, row);
+                for (int k = start[cell]; k < start[cell + 1]; k++) {
+                    int i = points[k];
+                    if (best >= 0 && i >= best) {
+                        break; // the points of a cell are in index order
+                    }
+                    double dx = x[i] - px;
+                    double dy = y[i] - py;
+                    if (dx * dx + dy * dy < r2) {
+                        best = i;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     *
+     * @param px the x of the position
+     * @param py the y of the position
+     * @param radius the search radius
+     * @return the indices of all the points closer than radius, in index
+     * order
+     */
+    public int[] getWithin(double px, double py, double radius) {
+        int[] result = new int[8];
+        int n = 0;
+        double r2 = radius * radius;
+        int c0 = Math.max(0, getColumn(px - radius)), c1 = Math.min(ncols - 1, getColumn(px + radius));
+        int r0 = Math.max(0, getRow(py - radius)), r1 = Math.min(nrows - 1, getRow(py + radius));
+        for (int row = r0; row <= r1; row++) {
+            for (int col = c0; col <= c1; col++) {
+                int cell = getCell(col, row);
+                for (int k = start[cell]; k < start[cell + 1]; k++) {
+                    int i = points[k];
+                    double dx = x[i] - px;
+                    double dy = y[i] - py;
+                    if (dx * dx + dy * dy < r2) {
+                        if (n == result.length) {
+                            result = Arrays.copyOf(result, 2 * n);
+                        }
+                        result[n++] = i;
+                    }
+                }
+            }
+        }
+        result = Arrays.copyOf(result, n);
+        Arrays.sort(result);
+        return result;
+    }
+
+}
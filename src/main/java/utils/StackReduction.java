@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import ij.*;
+import ij.process.*;
+import java.util.stream.IntStream;
+
+/**
+ * Pixel by pixel reduction of a slice range (sum, mean, maximum, minimum or
+ * variance) into a float image. The image is split in tiles reduced in
+ * parallel, every tile runs through the slices with its own double
+ * accumulators, so nothing is allocated per slice.
+ *
+ * The slices are read from their native pixel arrays, RGB slices are
+ * converted to float. The variance is the sample one (n - 1 denominator).
+ *
+ * @author alex
+ */
+public class StackReduction {
+
+    // the reductions
+    public static final int SUM = 0;
+    public static final int MEAN = 1;
+    public static final int MAX = 2;
+    public static final int MIN = 3;
+    public static final int VARIANCE = 4;
+
+    private static final int TILE = 4096;
+
+    /**
+     *
+     * @param stack the stack
+     * @param sinit the first slice (1 to size)
+     * @param send the last slice (1 to size)
+     * @param operation SUM, MEAN, MAX, MIN or VARIANCE
+     * @return the reduced image
+     */
+    public static FloatProcessor reduce(ImageStack stack, int sinit, int send, int operation) {
+        if (sinit < 1 || send > stack.getSize() || sinit > send) {
+            throw new IllegalArgumentException("Slice range out of range: " + sinit + "-" + send);
+        }
+        if (operation < SUM || operation > VARIANCE) {
+            throw new IllegalArgumentException("Unknown reduction: " + operation);
+        }
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        int npixels = width * height;
+        int nslices = send - sinit + 1;
+        Object[] slices = new Object[nslices];
+        for (int z = sinit; z <= send; z++) {
+            Object pixels = stack.getPixels(z);
+            if (pixels instanceof int[]) {
+                pixels = stack.getProcessor(z).convertToFloat().getPixels();
+            }
+            slices[z - sinit] = pixels;
+        }
+        float[] result = new float[npixels];
+        int ntiles = (npixels + TILE - 1) / TILE;
+        IntStream.range(0, ntiles).parallel().forEach(t -> {
+            int start = t * TILE;
+            int end = Math.min(npixels, start + TILE);
+            double[] acc = new double[end - start];
+            double[] m2 = operation == VARIANCE ? new double[end - start] : null;
+            float[] line = new float[end - start];
+            for (int k = 0; k < nslices; k++) {
+                Uniformity.getLine(slices[k], start, 1, end - start, line, 0);
+                for (int i = start; i < end; i++) {
+                    int j = i - start;
+                    double v = line[j];
+                    switch (operation) {
+                        case MAX:
+                            acc[j] = k == 0 || v > acc[j] ? v : acc[j];
+                            break;
+                        case MIN:
+                            acc[j] = k == 0 || v < acc[j] ? v : acc[j];
+                            break;
+                        case VARIANCE: {
+                            // Welford, acc keeps the running mean
+                            double d = v - acc[j];
+                            acc[j] += d / (k + 1);
+                            m2[j] += d * (v - acc[j]);
+                            break;
+                        }
+                        default:
+                            acc[j] += v;
+                    }
+                }
+            }
+            for (int i = start; i < end; i++) {
+                int j = i - start;
+                switch (operation) {
+                    case MEAN:
+                        result[i] = (float) (acc[j] / nslices);
+                        break;
+                    case VARIANCE:
+                        result[i] = nslices > 1 ? (float) (m2[j] / (nslices - 1)) : 0;
+                        break;
+                    default:
+                        result[i] = (float) acc[j];
+                }
+            }
+        });
+        return new FloatProcessor(width, height, result, null);
+    }
+
+}
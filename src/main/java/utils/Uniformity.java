@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016 ImageJ.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import ij.process.*;
+import java.awt.Rectangle;
+
+/**
+ * NEMA integral and differential uniformity computed directly over the pixel
+ * array of the processor inside a rasterised field of view.
+ *
+ * @author alex
+ */
+public class Uniformity {
+
+    /**
+     * NEMA window for the differential uniformity, in pixels
+     */
+    public static final int NEMAWINDOW = 5;
+
+    /**
+     * The output values of the uniformity engine
+     */
+    public static class outputvalues {
+
+        public double IU;
+        public double DU;
+        public double min;
+        public double max;
+        public double mean;
+        public int xmin, ymin;
+        public int xmax, ymax;
+
+        public outputvalues() {
+            IU = 0;
+            DU = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            mean = 0;
+            xmin = ymin = xmax = ymax = 0;
+        }
+    }
+
+    /**
+     *
+     * @param ip the image processor
+     * @return the native pixel array if it is float, short or byte, a float
+     * copy otherwise
+     */
+    static Object getPixels(ImageProcessor ip) {
+        Object pixels = ip.getPixels();
+        if (pixels instanceof float[] || pixels instanceof short[] || pixels instanceof byte[]) {
+            return pixels;
+        }
+        return ip.convertToFloat().getPixels();
+    }
+
+    /**
+     *
+     * @param pixels a float, short or byte pixel array
+     * @param index the pixel index
+     * @return the raw pixel value
+     */
+    static float getValue(Object pixels, int index) {
+        if (pixels instanceof float[]) {
+            return ((float[]) pixels)[index];
+        }
+        if (pixels instanceof short[]) {
+            return ((short[]) pixels)[index] & 0xffff;
+        }
+        return ((byte[]) pixels)[index] & 0xff;
+    }
+
+    /**
+     * Copies the raw values of a line of pixels to a float array, the pixel
+     * type is checked once for the whole line
+     *
+     * @param pixels a float, short or byte pixel array
+     * @param offset the index of the first pixel of the line
+     * @param stride 1 for rows, the image width for columns
+     * @param n the number of pixels in the line
+     * @param line the destination
+     * @param start the position of the first pixel in the destination
+     */
+    static void getLine(Object pixels, int offset, int stride, int n, float[] line, int start) {
+        if (pixels instanceof float[]) {
+            float[] fpixels = (float[]) pixels;
+            if (stride == 1) {
+                System.arraycopy(fpixels, offset, line, start, n);
+                return;
+            }
+            for (int i = 0, index = offset; i < n; i++, index += stride) {
+                line[start + i] = fpixels[index];
+            }
+        } else if (pixels instanceof short[]) {
+            short[] spixels = (short[]) pixels;
+            for (int i = 0, index = offset; i < n; i++, index += stride) {
+                line[start + i] = spixels[index] & 0xffff;
+            }
+        } else {
+            byte[] bpixels = (byte[]) pixels;
+            for (int i = 0, index = offset; i < n; i++, index += stride) {
+                line[start + i] = bpixels[index] & 0xff;
+            }
+        }
+    }
+
+    /**
+     * Min, max (with positions) and mean inside the field of view
+     *
+     * @param ip the image processor
+     * @param fov the rasterised field of view
+     * @return the statistics, IU and DU are left in zero
+     */
+    public static outputvalues getStatistics(ImageProcessor ip, FOVMask fov) {
+        return getStatistics(ip, new FOVMask[]{fov})[0];
+    }
+
+    /**
+     * Min, max (with positions) and mean inside several fields of view in a
+     * single sweep over the pixels
+     *
+     * @param ip the image processor
+     * @param fovs the rasterised fields of view
+     * @return the statistics for each field of view, IU and DU are left in
+     * zero
+     */
+    public static outputvalues[] getStatistics(ImageProcessor ip, FOVMask[] fovs) {
+        int n = fovs.length;
+        outputvalues[] result = new outputvalues[n];
+        byte[][] masks = new byte[n][];
+        double[] sum = new double[n];
+        Rectangle r = new Rectangle();
+        for (int k = 0; k < n; k++) {
+            result[k] = new outputvalues();
+            masks[k] = fovs[k].getMask();
+            r = r.isEmpty() ? fovs[k].getBounds() : r.union(fovs[k].getBounds());
+        }
+        Object pixels = getPixels(ip);
+        int w = ip.getWidth();
+        float[] row = new float[r.width];
+        for (int y = r.y; y < r.y + r.height; y++) {
+            getLine(pixels, y * w + r.x, 1, r.width, row, 0);
+            for (int x = r.x, index = y * w + r.x; x < r.x + r.width; x++, index++) {
+                float v = row[x - r.x];
+                for (int k = 0; k < n; k++) {
+                    if (masks[k][index] == 0) {
+                        continue;
+                    }
+                    outputvalues lresult = result[k];
+                    sum[k] += v;
+                    if (v < lresult.min) {
+                        lresult.min = v;
+                        lresult.xmin = x;
+                        lresult.ymin = y;
+                    }
+                    if (v > lresult.max) {
+                        lresult.max = v;
+                        lresult.xmax = x;
+                        lresult.ymax = y;
+                    }
+                }
+            }
+        }
+        for (int k = 0; k < n; k++) {
+            if (fovs[k].getCount() > 0) {
+                result[k].mean = sum[k] / fovs[k].getCount();
+            } else {
+                result[k].min = result[k].max = 0;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Integral and differential uniformity in the field of view using the
+     * NEMA 5 pixel window.
+     *
+     * @param ip the (already smoothed) image processor
+     * @param fov the rasterised field of view
+     * @return the uniformity values with the statistics of the image
+     */
+    public static outputvalues getUniformity(ImageProcessor ip, FOVMask fov) {
+        return getUniformity(ip, fov, NEMAWINDOW);
+    }
+
+    /**
+     * Integral and differential uniformity in the field of view. The
+     * differential uniformity takes the window by rows and by columns, only
+     * pixels inside the field of view are taken into account.
+     *
+     * @param ip the (already smoothed) image processor
+     * @param fov the rasterised field of view
+     * @param window the differential uniformity window length (odd)
+     * @return the uniformity values with the statistics of the image
+     */
+    public static outputvalues getUniformity(ImageProcessor ip, FOVMask fov, int window) {
+        return getUniformity(ip, new FOVMask[]{fov}, window)[0];
+    }
+
+    /**
+     * Integral and differential uniformity for several fields of view (UFOV,
+     * CFOV, ...) of the same smoothed image. The statistics of all of them
+     * come from one sweep over the pixels; the differential uniformity scans
+     * every line once per field of view it crosses, as the windows only take
+     * the pixels of that field of view.
+     *
+     * @param ip the (already smoothed) image processor
+     * @param fovs the rasterised fields of view
+     * @param window the differential uniformity window length (odd)
+     * @return the uniformity values for each field of view
+     */
+    public static outputvalues[] getUniformity(ImageProcessor ip, FOVMask[] fovs, int window) {
+        outputvalues[] result = getStatistics(ip, fovs);
+        double[] DU = getDifferentialUniformity(getPixels(ip), fovs, new SlidingExtrema(window));
+        for (int k = 0; k < fovs.length; k++) {
+            result[k].DU = DU[k];
+            result[k].IU = MathUtils.Contrast(result[k].min, result[k].max);
+        }
+        return result;
+    }
+
+    /**
+     * The lines are scanned once per field of view, within its bounds: a
+     * window near the border of an inner field of view must not take the
+     * pixels of the outer one, so the extrema of a shared scan would differ.
+     *
+     * @param pixels the pixel array from getPixels
+     * @param fovs the rasterised fields of view
+     * @param se the sliding window engine
+     * @return the maximum contrast among all row and column windows for each
+     * field of view
+     */
+    static double[] getDifferentialUniformity(Object pixels, FOVMask[] fovs, SlidingExtrema se) {
+        int n = fovs.length;
+        double[] DU = new double[n];
+        Rectangle[] bounds = new Rectangle[n];
+        Rectangle r = new Rectangle();
+        for (int k = 0; k < n; k++) {
+            bounds[k] = fovs[k].getBounds();
+            r = r.isEmpty() ? bounds[k] : r.union(bounds[k]);
+        }
+        int w = r.isEmpty() ? 0 : fovs[0].getWidth();
+        // Finding local boundaries by rows
+        for (int y = r.y; y < r.y + r.height; y++) {
+            for (int k = 0; k < n; k++) {
+                Rectangle b = bounds[k];
+                if (y < b.y || y >= b.y + b.height) {
+                    continue;
+                }
+                byte[] mask = fovs[k].getMask();
+                int offset = y * w + b.x;
+                se.scan(pixels, mask, offset, 1, b.width);
+                for (int i = 0; i < b.width; i++) {
+                    if (mask[offset + i] != 0) {
+                        DU[k] = Math.max(DU[k], MathUtils.Contrast(se.getMin(i), se.getMax(i)));
+                    }
+                }
+            }
+        }
+        // Finding local boundaries by columns
+        for (int x = r.x; x < r.x + r.width; x++) {
+            for (int k = 0; k < n; k++) {
+                Rectangle b = bounds[k];
+                if (x < b.x || x >= b.x + b.width) {
+                    continue;
+                }
+                byte[] mask = fovs[k].getMask();
+                int offset = b.y * w + x;
+                se.scan(pixels, mask, offset, w, b.height);
+                for (int j = 0; j < b.height; j++) {
+                    if (mask[offset + j * w] != 0) {
+                        DU[k] = Math.max(DU[k], MathUtils.Contrast(se.getMin(j), se.getMax(j)));
+                    }
+                }
+            }
+        }
+        return DU;
+    }
+
+}